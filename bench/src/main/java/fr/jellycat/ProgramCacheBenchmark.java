@@ -0,0 +1,71 @@
+package fr.jellycat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// From source to trees ready to run, with and without ProgramCache. The generated workload is the one the cache is
+// for; the small scripts show what it costs when there is little to parse.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProgramCacheBenchmark {
+    private Path directory;
+    private ProgramCache cache;
+    private ByteBuffer source;
+
+    @Setup
+    public void store(Workload workload) throws IOException {
+        directory = Files.createTempDirectory("jeevee-cache");
+        cache = ProgramCache.at(directory, 2);
+        source = ByteBuffer.wrap(workload.source.getBytes(StandardCharsets.UTF_8));
+        cache.store(cache.key(source), compile());
+    }
+
+    @TearDown
+    public void delete() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Benchmark
+    public List<Stmt> compile() {
+        List<Stmt> statements = new Parser(new Scanner(source.duplicate(), StandardCharsets.UTF_8)).parse();
+        statements = new Optimizer(2).optimize(statements);
+        new Resolver().resolve(statements);
+        return statements;
+    }
+
+    @Benchmark
+    public List<Stmt> load() {
+        List<Stmt> statements = cache.load(cache.key(source));
+        if (statements == null)
+            throw new IllegalStateException("Cache miss.");
+
+        return statements;
+    }
+}
@@ -0,0 +1,37 @@
+package fr.jellycat;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScannerBenchmark {
+    @Benchmark
+    public List<Token> scanTokens(Workload workload) {
+        return new Scanner(workload.source).scanTokens();
+    }
+
+    // How the parser reads tokens: by type, without Token objects, releasing them as it goes.
+    @Benchmark
+    public int streamTypes(Workload workload) {
+        Scanner scanner = new Scanner(workload.source);
+
+        int index = 0;
+        while (scanner.type(index) != TokenType.EOF) {
+            scanner.release(index++);
+        }
+
+        return index;
+    }
+}
@@ -0,0 +1,59 @@
+package fr.jellycat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// The script a benchmark runs: one of the files under workloads/, or a large generated one.
+@State(Scope.Benchmark)
+public class Workload {
+    @Param({ "for-loop", "arithmetic", "strings", "scopes", "fib", "calls", "tail", "generated" })
+    public String name;
+
+    String source;
+
+    @Setup
+    public void load() throws IOException {
+        source = name.equals("generated") ? generate(4000) : read("/workloads/" + name + ".eve");
+    }
+
+    private static String read(String resource) throws IOException {
+        try (InputStream input = Workload.class.getResourceAsStream(resource)) {
+            if (input == null)
+                throw new IOException("No workload " + resource);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int read; (read = input.read(buffer)) != -1;) {
+                bytes.write(buffer, 0, read);
+            }
+
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    // Straight-line code with a little of everything, the shape of a long configuration or data script.
+    private static String generate(int blocks) {
+        StringBuilder script = new StringBuilder();
+
+        for (int i = 0; i < blocks; i++) {
+            String name = "v" + i;
+            script.append("let ").append(name).append(" = ").append(i).append(" * 2 + 1;\n");
+            script.append("if ").append(name).append(" % 3 == 0 then ").append(name).append(" = ").append(name)
+                    .append(" - 1; else print \"").append(name).append("\"; end\n");
+
+            if (i % 100 == 0) {
+                script.append("while ").append(name).append(" > 0 do ").append(name).append(" = ").append(name)
+                        .append(" / 2 - 1; end\n");
+            }
+        }
+
+        return script.toString();
+    }
+}
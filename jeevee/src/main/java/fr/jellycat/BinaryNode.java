@@ -0,0 +1,261 @@
+package fr.jellycat;
+
+import static fr.jellycat.Interpreter.checkDivisionByZero;
+import static fr.jellycat.Interpreter.checkNumberOperands;
+import static fr.jellycat.Interpreter.isEqual;
+import static fr.jellycat.Numbers.isNumber;
+import static fr.jellycat.Numbers.toDouble;
+
+// Operation installed on an Expr.Binary site. A site starts uninitialized, rewrites itself to the specialization
+// matching the operands it first sees, and falls back to the generic node once a guard fails.
+abstract class BinaryNode {
+    static final BinaryNode UNINITIALIZED = new Uninitialized();
+    static final BinaryNode GENERIC = new Generic();
+
+    abstract Object execute(Expr.Binary site, Object left, Object right);
+
+    static BinaryNode specialize(TokenType operator, Object left, Object right) {
+        if (operator == TokenType.EQUAL_EQUAL)
+            return Equal.INSTANCE;
+        if (operator == TokenType.BANG_EQUAL)
+            return NotEqual.INSTANCE;
+
+        if (isNumber(left) && isNumber(right)) {
+            switch (operator) {
+                case PLUS:
+                    return AddDoubles.INSTANCE;
+                case MINUS:
+                    return SubtractDoubles.INSTANCE;
+                case STAR:
+                    return MultiplyDoubles.INSTANCE;
+                case SLASH:
+                    return DivideDoubles.INSTANCE;
+                case PERCENT:
+                    return ModuloDoubles.INSTANCE;
+                case GREATER:
+                    return GreaterDoubles.INSTANCE;
+                case GREATER_EQUAL:
+                    return GreaterEqualDoubles.INSTANCE;
+                case LESS:
+                    return LessDoubles.INSTANCE;
+                case LESS_EQUAL:
+                    return LessEqualDoubles.INSTANCE;
+                default:
+                    break;
+            }
+        }
+
+        if (operator == TokenType.PLUS && left instanceof CharSequence && right instanceof CharSequence)
+            return AddStrings.INSTANCE;
+
+        return GENERIC;
+    }
+
+    // A guard failed: this site is polymorphic, stop specializing it.
+    static Object generalize(Expr.Binary site, Object left, Object right) {
+        site.node = GENERIC;
+        return GENERIC.execute(site, left, right);
+    }
+
+    static final class Uninitialized extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary site, Object left, Object right) {
+            BinaryNode node = specialize(site.operator.type, left, right);
+            site.node = node;
+            return node.execute(site, left, right);
+        }
+    }
+
+    // Specializations for two numbers, which the interpreter can also run on unboxed doubles.
+    abstract static class Arithmetic extends BinaryNode {
+        abstract double apply(Expr.Binary site, double left, double right);
+
+        @Override
+        final Object execute(Expr.Binary site, Object left, Object right) {
+            if (isNumber(left) && isNumber(right))
+                return Numbers.box(apply(site, toDouble(left), toDouble(right)));
+            return generalize(site, left, right);
+        }
+    }
+
+    abstract static class Comparison extends BinaryNode {
+        abstract boolean apply(double left, double right);
+
+        @Override
+        final Object execute(Expr.Binary site, Object left, Object right) {
+            if (isNumber(left) && isNumber(right))
+                return apply(toDouble(left), toDouble(right));
+            return generalize(site, left, right);
+        }
+    }
+
+    static final class AddDoubles extends Arithmetic {
+        static final BinaryNode INSTANCE = new AddDoubles();
+
+        @Override
+        double apply(Expr.Binary site, double left, double right) {
+            return left + right;
+        }
+    }
+
+    static final class SubtractDoubles extends Arithmetic {
+        static final BinaryNode INSTANCE = new SubtractDoubles();
+
+        @Override
+        double apply(Expr.Binary site, double left, double right) {
+            return left - right;
+        }
+    }
+
+    static final class MultiplyDoubles extends Arithmetic {
+        static final BinaryNode INSTANCE = new MultiplyDoubles();
+
+        @Override
+        double apply(Expr.Binary site, double left, double right) {
+            return left * right;
+        }
+    }
+
+    static final class DivideDoubles extends Arithmetic {
+        static final BinaryNode INSTANCE = new DivideDoubles();
+
+        @Override
+        double apply(Expr.Binary site, double left, double right) {
+            if (right == 0)
+                throw new RuntimeError(site.operator, "Division by zero is not possible.");
+            return left / right;
+        }
+    }
+
+    static final class ModuloDoubles extends Arithmetic {
+        static final BinaryNode INSTANCE = new ModuloDoubles();
+
+        @Override
+        double apply(Expr.Binary site, double left, double right) {
+            return left % right;
+        }
+    }
+
+    static final class GreaterDoubles extends Comparison {
+        static final BinaryNode INSTANCE = new GreaterDoubles();
+
+        @Override
+        boolean apply(double left, double right) {
+            return left > right;
+        }
+    }
+
+    static final class GreaterEqualDoubles extends Comparison {
+        static final BinaryNode INSTANCE = new GreaterEqualDoubles();
+
+        @Override
+        boolean apply(double left, double right) {
+            return left >= right;
+        }
+    }
+
+    static final class LessDoubles extends Comparison {
+        static final BinaryNode INSTANCE = new LessDoubles();
+
+        @Override
+        boolean apply(double left, double right) {
+            return left < right;
+        }
+    }
+
+    static final class LessEqualDoubles extends Comparison {
+        static final BinaryNode INSTANCE = new LessEqualDoubles();
+
+        @Override
+        boolean apply(double left, double right) {
+            return left <= right;
+        }
+    }
+
+    static final class AddStrings extends BinaryNode {
+        static final BinaryNode INSTANCE = new AddStrings();
+
+        @Override
+        Object execute(Expr.Binary site, Object left, Object right) {
+            if (left instanceof CharSequence && right instanceof CharSequence) {
+                Metrics.CONCATENATIONS.increment();
+                return Rope.concat((CharSequence) left, (CharSequence) right);
+            }
+            return generalize(site, left, right);
+        }
+    }
+
+    static final class Equal extends BinaryNode {
+        static final BinaryNode INSTANCE = new Equal();
+
+        @Override
+        Object execute(Expr.Binary site, Object left, Object right) {
+            return isEqual(left, right);
+        }
+    }
+
+    static final class NotEqual extends BinaryNode {
+        static final BinaryNode INSTANCE = new NotEqual();
+
+        @Override
+        Object execute(Expr.Binary site, Object left, Object right) {
+            return !isEqual(left, right);
+        }
+    }
+
+    static final class Generic extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary site, Object left, Object right) {
+            Token operator = site.operator;
+
+            switch (operator.type) {
+                case MINUS:
+                    checkNumberOperands(operator, left, right);
+                    return Numbers.box(toDouble(left) - toDouble(right));
+                case PLUS: {
+                    if (isNumber(left) && isNumber(right)) {
+                        return Numbers.box(toDouble(left) + toDouble(right));
+                    }
+
+                    if (left instanceof CharSequence && right instanceof CharSequence) {
+                        Metrics.CONCATENATIONS.increment();
+                        return Rope.concat((CharSequence) left, (CharSequence) right);
+                    }
+
+                    throw new RuntimeError(operator, "Operands must be numbers or strings");
+                }
+                case SLASH:
+                    checkNumberOperands(operator, left, right);
+                    checkDivisionByZero(operator, right);
+                    return Numbers.box(toDouble(left) / toDouble(right));
+                case STAR:
+                    checkNumberOperands(operator, left, right);
+                    return Numbers.box(toDouble(left) * toDouble(right));
+                case PERCENT:
+                    checkNumberOperands(operator, left, right);
+                    return Numbers.box(toDouble(left) % toDouble(right));
+                case GREATER:
+                    checkNumberOperands(operator, left, right);
+                    return toDouble(left) > toDouble(right);
+                case GREATER_EQUAL:
+                    checkNumberOperands(operator, left, right);
+                    return toDouble(left) >= toDouble(right);
+                case LESS:
+                    checkNumberOperands(operator, left, right);
+                    return toDouble(left) < toDouble(right);
+                case LESS_EQUAL:
+                    checkNumberOperands(operator, left, right);
+                    return toDouble(left) <= toDouble(right);
+                case EQUAL_EQUAL:
+                    return isEqual(left, right);
+                case BANG_EQUAL:
+                    return !isEqual(left, right);
+                default:
+                    break;
+            }
+
+            // Unreachable
+            return null;
+        }
+    }
+}
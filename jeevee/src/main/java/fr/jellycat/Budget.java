@@ -0,0 +1,103 @@
+package fr.jellycat;
+
+// What an interpreter may still spend, both unlimited until a limit is set, which counts from then on. Fuel is loop
+// iterations and calls: without loops or recursion a script runs each statement at most once, so counting them
+// bounds all the work it does. Memory is the approximate bytes of every string and closure it makes, since it may
+// keep them all, and of its live frames. Each is charged where it is spent and checked with one comparison.
+final class Budget {
+    static final long UNLIMITED = Long.MAX_VALUE;
+
+    // Compiled loops take fuel in batches, so they only come back here once every BATCH iterations.
+    static final int BATCH = 1024;
+
+    // An object and its three slot arrays, then per slot a tag, a reference and a double.
+    private static final int FRAME = 16 + 3 * 16;
+    private static final int SLOT = 1 + 4 + 8;
+    private static final int STRING = 24 + 16;
+    // The closure and its array of cells, then a reference per cell.
+    private static final int CLOSURE = 16 + 16;
+    private static final int CAPTURE = 4;
+
+    long fuel = UNLIMITED;
+    long memory = UNLIMITED;
+    private long fuelLimit = UNLIMITED;
+    private long memoryLimit = UNLIMITED;
+
+    void limitFuel(long iterations) {
+        fuelLimit = iterations;
+        fuel = iterations;
+    }
+
+    void limitMemory(long bytes) {
+        memoryLimit = bytes;
+        memory = bytes;
+    }
+
+    void iteration(Token position) {
+        if (--fuel < 0)
+            throw outOfFuel(position);
+    }
+
+    // Returns the fuel the compiled loop may still use after this iteration.
+    int refuel(Token position) {
+        if (fuel <= 0)
+            throw outOfFuel(position);
+
+        int batch = (int) Math.min(fuel, BATCH);
+        fuel -= batch;
+        return batch - 1;
+    }
+
+    // Fuel a compiled loop took but did not use.
+    void refund(int unused) {
+        if (unused > 0) {
+            fuel += unused;
+        }
+    }
+
+    // The characters a concatenation stored; Strings are UTF-16 at worst.
+    void string(Token position, int characters) {
+        memory -= STRING + 2L * characters;
+        if (memory < 0)
+            throw outOfMemory(position);
+    }
+
+    // Entering a frame has no position to report, so frames are charged without a check and the next string finds
+    // out when they went over.
+    void enterFrame(int slots) {
+        memory -= FRAME + (long) SLOT * slots;
+    }
+
+    void exitFrame(int slots) {
+        memory += FRAME + (long) SLOT * slots;
+    }
+
+    // A call is charged its frame, which it does have a position for. A call stopped here never enters its frame,
+    // so nothing would give the frame back with exitFrame.
+    void call(Token position, int slots) {
+        if (--fuel < 0)
+            throw outOfFuel(position);
+
+        long frame = FRAME + (long) SLOT * slots;
+        memory -= frame;
+        if (memory < 0) {
+            memory += frame;
+            throw outOfMemory(position);
+        }
+    }
+
+    void closure(Token position, int captures) {
+        memory -= CLOSURE + (long) CAPTURE * captures;
+        if (memory < 0)
+            throw outOfMemory(position);
+    }
+
+    private RuntimeError outOfFuel(Token position) {
+        fuel = 0;
+        return new RuntimeError(position, "Out of fuel: more than " + fuelLimit + " loop iterations and calls.");
+    }
+
+    private RuntimeError outOfMemory(Token position) {
+        return new RuntimeError(position, "Out of memory: more than " + memoryLimit + " bytes allocated.");
+    }
+}
@@ -0,0 +1,464 @@
+package fr.jellycat;
+
+import static fr.jellycat.vm.OpCode.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import fr.jellycat.vm.Chunk;
+
+class BytecodeCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static class CompileError extends RuntimeException {
+    }
+
+    private static final int MAX_OPERAND = 0xffff;
+
+    private final Chunk chunk = new Chunk();
+
+    // Frame offset of each enclosing resolver frame, innermost last.
+    private final List<Integer> scopeBases = new ArrayList<>();
+    private int localCount = 0;
+    private int maxLocals = 0;
+    private int stackHeight = 0;
+    private int maxStack = 0;
+    private Token position;
+    // Why compile returned null.
+    private Diagnostic error;
+
+    Chunk compile(List<Stmt> statements) {
+        try {
+            for (Stmt statement : statements) {
+                compile(statement);
+            }
+
+            emit(NIL);
+            emit(RETURN);
+        } catch (CompileError error) {
+            return null;
+        }
+
+        return finish();
+    }
+
+    Chunk compileExpression(Expr expression) {
+        try {
+            compile(expression);
+            emit(RETURN);
+        } catch (CompileError error) {
+            return null;
+        }
+
+        return finish();
+    }
+
+    Diagnostic error() {
+        return error;
+    }
+
+    private Chunk finish() {
+        chunk.setFrameSize(maxLocals, maxStack);
+        return chunk.seal();
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void compileScope(List<Stmt> statements, int locals) {
+        beginFrame(locals);
+        for (Stmt statement : statements) {
+            compile(statement);
+        }
+        endFrame(locals);
+    }
+
+    // Only scopes the resolver gave a frame of their own (locals > 0) shift the local addressing.
+    private void beginFrame(int locals) {
+        if (locals == 0)
+            return;
+
+        scopeBases.add(localCount);
+        localCount += locals;
+        maxLocals = Math.max(maxLocals, localCount);
+    }
+
+    private void endFrame(int locals) {
+        if (locals == 0)
+            return;
+
+        localCount -= locals;
+        scopeBases.remove(scopeBases.size() - 1);
+    }
+
+    private int localIndex(int depth, int slot) {
+        return scopeBases.get(scopeBases.size() - 1 - depth) + slot;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        compileScope(stmt.statements, stmt.locals);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        emit(POP);
+        return null;
+    }
+
+    // The same code as the while loop it was made from; the VM recomputes invariants instead of caching them.
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        beginFrame(stmt.locals);
+        compile(stmt.counter);
+        int counter = localIndex(0, stmt.counter.slot);
+
+        int loopStart = chunk.count();
+        position = stmt.operator;
+        emit(GET_LOCAL, counter);
+        compile(stmt.limit);
+        position = stmt.operator;
+
+        switch (stmt.operator.type) {
+            case LESS:
+                emit(LESS);
+                break;
+            case LESS_EQUAL:
+                emit(LESS_EQUAL);
+                break;
+            case GREATER:
+                emit(GREATER);
+                break;
+            default:
+                emit(GREATER_EQUAL);
+                break;
+        }
+
+        int exitJump = emitJump(POP_JUMP_IF_FALSE);
+        compile(stmt.body);
+        emit(GET_LOCAL, counter);
+        emitConstant(stmt.step);
+        emit(ADD);
+        emit(SET_LOCAL, counter);
+        emit(POP);
+        emitLoop(loopStart);
+        patchJump(exitJump);
+        endFrame(stmt.locals);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        compile(stmt.condition);
+        int elseJump = emitJump(POP_JUMP_IF_FALSE);
+        compileScope(stmt.consequent, stmt.consequentLocals);
+
+        if (stmt.alternate != null && !stmt.alternate.isEmpty()) {
+            int endJump = emitJump(JUMP);
+            patchJump(elseJump);
+            compileScope(stmt.alternate, stmt.alternateLocals);
+            patchJump(endJump);
+        } else {
+            patchJump(elseJump);
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emit(PRINT);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        position = stmt.name;
+
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emit(NIL);
+        }
+
+        if (stmt.depth == -1) {
+            emitGlobal(DEFINE_GLOBAL, stmt.slot, stmt.name);
+        } else {
+            emit(SET_LOCAL, localIndex(0, stmt.slot));
+            emit(POP);
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        return unsupported(stmt.name);
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        return unsupported(stmt.keyword);
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        beginFrame(stmt.locals);
+        int loopStart = chunk.count();
+        compile(stmt.condition);
+        int exitJump = emitJump(POP_JUMP_IF_FALSE);
+        compile(stmt.body);
+        emitLoop(loopStart);
+        patchJump(exitJump);
+        endFrame(stmt.locals);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        position = expr.name;
+        emitSet(expr.name, expr.depth, expr.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        return unsupported(expr.paren);
+    }
+
+    @Override
+    public Void visitLambdaExpr(Expr.Lambda expr) {
+        return unsupported(expr.name);
+    }
+
+    @Override
+    public Void visitConditionalExpr(Expr.Conditional expr) {
+        compile(expr.test);
+        compile(expr.consequent);
+        compile(expr.alternate);
+        emit(SELECT);
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+        int endJump = emitJump(expr.operator.type == TokenType.OR ? JUMP_IF_TRUE : JUMP_IF_FALSE);
+        emit(POP);
+        compile(expr.right);
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+        position = expr.operator;
+
+        switch (expr.operator.type) {
+            case MINUS:
+                emit(SUBTRACT);
+                break;
+            case PLUS:
+                emit(ADD);
+                break;
+            case SLASH:
+                emit(DIVIDE);
+                break;
+            case STAR:
+                emit(MULTIPLY);
+                break;
+            case PERCENT:
+                emit(MODULO);
+                break;
+            case GREATER:
+                emit(GREATER);
+                break;
+            case GREATER_EQUAL:
+                emit(GREATER_EQUAL);
+                break;
+            case LESS:
+                emit(LESS);
+                break;
+            case LESS_EQUAL:
+                emit(LESS_EQUAL);
+                break;
+            case EQUAL_EQUAL:
+                emit(EQUAL);
+                break;
+            case BANG_EQUAL:
+                emit(NOT_EQUAL);
+                break;
+            default:
+                // Mirrors the interpreter, which yields nil for operators it does not know.
+                emit(POP);
+                emit(POP);
+                emit(NIL);
+                break;
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitInvariantExpr(Expr.Invariant expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emit(NIL);
+        } else if (expr.value instanceof Boolean) {
+            emit((boolean) expr.value ? TRUE : FALSE);
+        } else if (expr.value instanceof Long) {
+            // The VM computes on doubles only.
+            emitConstant((double) (long) expr.value);
+        } else {
+            emitConstant(expr.value);
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+        position = expr.operator;
+
+        switch (expr.operator.type) {
+            case MINUS:
+                emit(NEGATE);
+                break;
+            case BANG:
+                emit(NOT);
+                break;
+            case MINUS_MINUS:
+                emit(DECREMENT);
+                break;
+            case PLUS_PLUS:
+                emit(INCREMENT);
+                break;
+            default:
+                emit(POP);
+                emit(NIL);
+                break;
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visitPostFixExpr(Expr.PostFix expr) {
+        compile(expr.left);
+        position = expr.operator;
+        emit(expr.operator.type == TokenType.MINUS_MINUS ? DECREMENT : INCREMENT);
+
+        if (expr.left instanceof Expr.Variable) {
+            Expr.Variable var = (Expr.Variable) expr.left;
+            emitSet(var.name, var.depth, var.slot);
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        position = expr.name;
+
+        if (expr.depth == -1) {
+            emitGlobal(GET_GLOBAL, expr.slot, expr.name);
+        } else {
+            emit(GET_LOCAL, localIndex(expr.depth, expr.slot));
+        }
+
+        return null;
+    }
+
+    private void emitSet(Token name, int depth, int slot) {
+        if (depth == -1) {
+            emitGlobal(SET_GLOBAL, slot, name);
+        } else {
+            emit(SET_LOCAL, localIndex(depth, slot));
+        }
+    }
+
+    private void emitGlobal(byte op, int slot, Token name) {
+        emit(op, slot);
+        writeShort(checkOperand(chunk.addConstant(name.lexeme), "Too many constants in one script."));
+    }
+
+    private void emitConstant(Object value) {
+        emit(CONSTANT, checkOperand(chunk.addConstant(value), "Too many constants in one script."));
+    }
+
+    private void emit(byte op) {
+        int line = position == null ? 0 : position.line;
+        int column = position == null ? 0 : position.column;
+        chunk.write(op, line, column);
+
+        stackHeight += stackEffect(op);
+        maxStack = Math.max(maxStack, stackHeight);
+    }
+
+    private void emit(byte op, int operand) {
+        emit(op);
+        writeShort(checkOperand(operand, "Too many variables in one script."));
+    }
+
+    private int emitJump(byte op) {
+        emit(op);
+        writeShort(MAX_OPERAND);
+        return chunk.count() - 2;
+    }
+
+    private void patchJump(int offset) {
+        int jump = chunk.count() - offset - 2;
+        chunk.patchShort(offset, checkOperand(jump, "Too much code to jump over."));
+    }
+
+    private void emitLoop(int loopStart) {
+        emit(LOOP);
+        int offset = chunk.count() - loopStart + 2;
+        writeShort(checkOperand(offset, "Loop body too large."));
+    }
+
+    private void writeShort(int value) {
+        int line = position == null ? 0 : position.line;
+        int column = position == null ? 0 : position.column;
+        chunk.writeShort(value, line, column);
+    }
+
+    private Void unsupported(Token token) {
+        error = Diagnostic.syntax(token, token.column, "Functions are not supported by the bytecode VM yet.");
+        throw new CompileError();
+    }
+
+    private int checkOperand(int operand, String message) {
+        if (operand <= MAX_OPERAND)
+            return operand;
+
+        if (position != null) {
+            error = Diagnostic.syntax(position, position.column, message);
+        } else {
+            error = Diagnostic.syntax(0, 0, message);
+        }
+
+        throw new CompileError();
+    }
+}
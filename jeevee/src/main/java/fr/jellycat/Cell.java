@@ -0,0 +1,11 @@
+package fr.jellycat;
+
+// A local some closure captures, shared by the frame declaring it and every closure capturing it, so an assignment
+// through any of them is seen by all.
+final class Cell {
+    Object value;
+
+    Cell(Object value) {
+        this.value = value;
+    }
+}
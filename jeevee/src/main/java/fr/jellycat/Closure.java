@@ -0,0 +1,24 @@
+package fr.jellycat;
+
+// The value of a def or a lambda: the function, and the cells of the variables of enclosing functions it uses. It
+// holds nothing else of the frames it was made in. Its globals are those of the context calling it, which must number
+// them the same way.
+final class Closure {
+    final Expr.Lambda function;
+    final Cell[] captures;
+    final GlobalSlots globalSlots;
+
+    Closure(Expr.Lambda function, Cell[] captures, GlobalSlots globalSlots) {
+        this.function = function;
+        this.captures = captures;
+        this.globalSlots = globalSlots;
+    }
+
+    @Override
+    public String toString() {
+        if (function.name.type == TokenType.LAMBDA)
+            return "<lambda>";
+
+        return "<fn " + function.name.lexeme + ">";
+    }
+}
@@ -0,0 +1,84 @@
+package fr.jellycat;
+
+// A hot while loop compiled to a JVM class. The generated body works on the loop's numeric variables held in JVM
+// locals, loaded from and stored back to the interpreter's frames around each run.
+final class CompiledLoop {
+    interface Body {
+        void run(double[] state, Object[] constants, Output output, Budget budget);
+    }
+
+    private static final int MAX_DEOPTIMIZATIONS = 3;
+
+    private final Body body;
+    private final Object[] constants;
+    private final int[] depths;
+    private final int[] slots;
+    private final boolean[] declared;
+    private int deoptimizations = 0;
+
+    CompiledLoop(Body body, Object[] constants, int[] depths, int[] slots, boolean[] declared) {
+        this.body = body;
+        this.constants = constants;
+        this.depths = depths;
+        this.slots = slots;
+        this.declared = declared;
+    }
+
+    // Runs the rest of the loop from the current frames. Returns false, without running anything, when a variable
+    // the code was compiled for no longer holds a number.
+    boolean run(Environment environment, Environment globals, Output output, Budget budget) {
+        double[] state = new double[slots.length];
+        Environment[] frames = new Environment[slots.length];
+
+        for (int i = 0; i < slots.length; i++) {
+            frames[i] = depths[i] == -1 ? globals : environment.ancestor(depths[i]);
+
+            // Variables declared inside the loop are always assigned before they are read.
+            if (declared[i])
+                continue;
+            if (!frames[i].isNumber(slots[i]))
+                return false;
+
+            state[i] = frames[i].numbers[slots[i]];
+        }
+
+        try {
+            body.run(state, constants, output, budget);
+        } finally {
+            for (int i = 0; i < slots.length; i++) {
+                frames[i].setDouble(slots[i], state[i]);
+            }
+        }
+
+        return true;
+    }
+
+    // Called after run() refused to enter; tells whether the loop is still worth trying later.
+    boolean deoptimize() {
+        return ++deoptimizations < MAX_DEOPTIMIZATIONS;
+    }
+
+    static void print(Output output, double value) {
+        output.println(value);
+    }
+
+    static void print(Output output, boolean value) {
+        output.println(Interpreter.stringify(value));
+    }
+
+    static void print(Output output, Object value) {
+        output.println(Interpreter.stringify(value));
+    }
+
+    static int refuel(Budget budget, Object position) {
+        return budget.refuel((Token) position);
+    }
+
+    static void refund(Budget budget, int unused) {
+        budget.refund(unused);
+    }
+
+    static RuntimeError divisionByZero(Object operator) {
+        return new RuntimeError((Token) operator, "Division by zero is not possible.");
+    }
+}
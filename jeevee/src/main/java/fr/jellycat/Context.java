@@ -0,0 +1,127 @@
+package fr.jellycat;
+
+import java.util.Optional;
+import java.util.function.Consumer;
+
+// One execution of a program, with its own globals and its own place for printed lines. A context is used by one
+// thread at a time; running the same program concurrently takes one context per thread, which is cheap since the
+// program is already compiled.
+//
+// Values cross over as Java objects: nil is null, booleans are Booleans, strings are Strings, and numbers are Longs
+// when they are integers and Doubles otherwise. Any Number can be set, as the double it converts to. Functions come
+// out as opaque objects, which can be set in and called by any context of a program of the same engine: a function
+// uses the globals of the context it runs in.
+public final class Context {
+    private final Program program;
+    private final Interpreter interpreter;
+    private Object result;
+
+    // Prints to System.out.
+    public Context(Program program) {
+        this(program, new Output.Direct());
+    }
+
+    // Hands each printed line to the callback, on the thread running the program.
+    public Context(Program program, Consumer<String> output) {
+        this(program, new Output.Lines(output));
+    }
+
+    private Context(Program program, Output output) {
+        if (program.hasErrors())
+            throw new IllegalArgumentException("Cannot run a program with errors: " + program.diagnostics().get(0));
+
+        this.program = program;
+        this.interpreter = new Interpreter(output, program.globalSlots());
+    }
+
+    // Defines a global before the program runs, as if the script had declared it.
+    public void set(String name, Object value) {
+        Integer slot = program.slot(name);
+        if (slot == null)
+            throw new IllegalArgumentException("The program has no global named '" + name + "'.");
+
+        interpreter.defineGlobal(slot, toScript(value));
+    }
+
+    // Calls a function with the globals as they are, and returns the runtime error that stopped it, if one did.
+    // What it returned is then the result.
+    public Optional<Diagnostic> call(Object function, Object... arguments) {
+        if (!isFunction(function))
+            throw new IllegalArgumentException("Not a function: " + function + ".");
+
+        Object[] values = new Object[arguments.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = toScript(arguments[i]);
+        }
+
+        result = null;
+        try {
+            result = Rope.flatten(interpreter.call((Closure) toScript(function), values));
+            return Optional.empty();
+        } catch (RuntimeError error) {
+            Metrics.RUNTIME_ERRORS.increment();
+            return Optional.of(Diagnostic.runtime(error));
+        }
+    }
+
+    // What the last call returned; null when it failed.
+    public Object result() {
+        return result;
+    }
+
+    // Whether the global holds a value, nil included, either set or assigned by the script.
+    public boolean isDefined(String name) {
+        Integer slot = program.slot(name);
+        return slot != null && interpreter.isDefined(slot);
+    }
+
+    // Null as well when the global is not defined.
+    public Object get(String name) {
+        Integer slot = program.slot(name);
+        if (slot == null)
+            return null;
+
+        return Rope.flatten(interpreter.global(slot));
+    }
+
+    // Whether a value got from a context is a function.
+    public static boolean isFunction(Object value) {
+        return value instanceof Closure;
+    }
+
+    // Bounds the loop iterations and calls of the runs from now on: past them, the run stops with a runtime error
+    // where the loop or call is, like with limitMemory.
+    public void limitFuel(long iterations) {
+        interpreter.budget().limitFuel(iterations);
+    }
+
+    // Bounds the approximate bytes of the strings and closures the runs from now on make, and of their frames.
+    public void limitMemory(long bytes) {
+        interpreter.budget().limitMemory(bytes);
+    }
+
+    // Runs the program from the start with the globals as they are, and returns the runtime error that stopped it,
+    // if one did. The globals stay as the run left them, for get and for the next run.
+    public Optional<Diagnostic> run() {
+        try {
+            interpreter.interpret(program.statements());
+            return Optional.empty();
+        } catch (RuntimeError error) {
+            Metrics.RUNTIME_ERRORS.increment();
+            return Optional.of(Diagnostic.runtime(error));
+        }
+    }
+
+    private Object toScript(Object value) {
+        if (value instanceof Closure && ((Closure) value).globalSlots != program.globalSlots())
+            throw new IllegalArgumentException("The function comes from a program of another engine.");
+        if (value == null || value instanceof Boolean || value instanceof String || value instanceof Closure)
+            return value;
+        if (value instanceof Number)
+            return Numbers.box(((Number) value).doubleValue());
+        if (value instanceof CharSequence)
+            return value.toString();
+
+        throw new IllegalArgumentException("Scripts have no values of " + value.getClass() + ".");
+    }
+}
@@ -0,0 +1,66 @@
+package fr.jellycat;
+
+// An error in a script: a syntax error found while compiling it, or the runtime error that stopped it.
+public final class Diagnostic {
+    public enum Kind {
+        SYNTAX,
+        RUNTIME
+    }
+
+    private final Kind kind;
+    private final int line;
+    private final int column;
+    // Where on the line, like " at 'x'", or empty.
+    private final String where;
+    private final String message;
+
+    private Diagnostic(Kind kind, int line, int column, String where, String message) {
+        this.kind = kind;
+        this.line = line;
+        this.column = column;
+        this.where = where;
+        this.message = message;
+    }
+
+    static Diagnostic syntax(int line, int column, String message) {
+        return new Diagnostic(Kind.SYNTAX, line, column, "", message);
+    }
+
+    static Diagnostic syntax(Token token, int column, String message) {
+        String where = token.type == TokenType.EOF ? " at end" : " at '" + token.lexeme + "'";
+        return new Diagnostic(Kind.SYNTAX, token.line, column, where, message);
+    }
+
+    static Diagnostic runtime(int line, int column, String message) {
+        return new Diagnostic(Kind.RUNTIME, line, column, "", message);
+    }
+
+    static Diagnostic runtime(RuntimeError error) {
+        return runtime(error.token.line, error.token.column, error.getMessage());
+    }
+
+    public Kind kind() {
+        return kind;
+    }
+
+    public int line() {
+        return line;
+    }
+
+    public int column() {
+        return column;
+    }
+
+    public String message() {
+        return message;
+    }
+
+    // What the command line prints for it.
+    @Override
+    public String toString() {
+        if (kind == Kind.RUNTIME)
+            return "Runtime error -> (" + line + ":" + column + ")\n" + message;
+
+        return "Error" + where + " (" + line + ":" + column + "): " + message;
+    }
+}
@@ -0,0 +1,55 @@
+package fr.jellycat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Entry point for programs embedding the interpreter: compiles scripts once into Programs, which then run in as
+// many Contexts as needed. An engine holds its settings and the numbering of the globals its programs share, and can
+// be shared by every thread.
+public final class Engine {
+    private final int optLevel;
+    private final GlobalSlots globals = new GlobalSlots();
+
+    public Engine() {
+        this(2);
+    }
+
+    // The levels of --opt-level: 0 runs the tree as parsed, 1 folds constants, 2 also optimizes counted loops.
+    public Engine(int optLevel) {
+        if (optLevel < 0 || optLevel > 2)
+            throw new IllegalArgumentException("Optimization level must be 0, 1 or 2, not " + optLevel + ".");
+
+        this.optLevel = optLevel;
+        Metrics.registerIfEnabled();
+    }
+
+    // Syntax errors do not throw: the program comes back with them as its diagnostics, and cannot run.
+    public Program compile(String source) {
+        return compile("<script>", source);
+    }
+
+    // The name is the script's in the parse times of Metrics.
+    public Program compile(String name, String source) {
+        Parser parser = new Parser(new Scanner(source));
+        List<Stmt> statements = parse(name, parser);
+
+        if (!parser.diagnostics().isEmpty())
+            return new Program(Collections.emptyList(), globals, new ArrayList<>(parser.diagnostics()));
+
+        if (optLevel > 0) {
+            statements = new Optimizer(optLevel).optimize(statements);
+        }
+
+        new Resolver(globals).resolve(statements);
+        return new Program(statements, globals, Collections.emptyList());
+    }
+
+    // The parser pulls tokens from the scanner as it goes, so this times both.
+    static List<Stmt> parse(String name, Parser parser) {
+        long start = System.nanoTime();
+        List<Stmt> statements = parser.parse();
+        Metrics.parsed(name, System.nanoTime() - start);
+        return statements;
+    }
+}
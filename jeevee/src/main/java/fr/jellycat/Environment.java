@@ -1,46 +1,111 @@
 package fr.jellycat;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 class Environment {
+    // What each slot currently holds. Numbers live unboxed in 'numbers', everything else in 'values'.
+    static final byte UNDEFINED = 0;
+    static final byte OBJECT = 1;
+    static final byte NUMBER = 2;
+
     final Environment parent;
-    private final Map<String, Object> values = new HashMap<>();
+    byte[] tags;
+    Object[] values;
+    double[] numbers;
 
     Environment() {
-        parent = null;
+        this(null, 8);
     }
 
-    Environment(Environment parent) {
+    Environment(Environment parent, int size) {
         this.parent = parent;
+        this.tags = new byte[size];
+        this.values = new Object[size];
+        this.numbers = new double[size];
     }
 
-    Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
+    Environment ancestor(int depth) {
+        Environment environment = this;
+        for (int i = 0; i < depth; i++) {
+            environment = environment.parent;
         }
 
-        if (parent != null)
-            return parent.get(name);
-
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+        return environment;
     }
 
-    void define(String name, Object value) {
-        values.put(name, value);
+    Object get(int slot) {
+        if (tags[slot] == NUMBER)
+            return Numbers.box(numbers[slot]);
+        return values[slot];
     }
 
-    void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
+    void set(int slot, Object value) {
+        if (Numbers.isNumber(value)) {
+            setDouble(slot, Numbers.toDouble(value));
             return;
         }
 
-        if (parent != null) {
-            parent.assign(name, value);
-            return;
+        tags[slot] = OBJECT;
+        values[slot] = value;
+    }
+
+    void setDouble(int slot, double value) {
+        tags[slot] = NUMBER;
+        numbers[slot] = value;
+        values[slot] = null;
+    }
+
+    void clear(int slot) {
+        tags[slot] = UNDEFINED;
+        values[slot] = null;
+    }
+
+    boolean isDefined(int slot) {
+        return slot < tags.length && tags[slot] != UNDEFINED;
+    }
+
+    boolean isNumber(int slot) {
+        return slot < tags.length && tags[slot] == NUMBER;
+    }
+
+    Object getGlobal(Token name, int slot) {
+        checkDefined(name, slot);
+        return get(slot);
+    }
+
+    void defineGlobal(int slot, Object value) {
+        ensureCapacity(slot);
+        set(slot, value);
+    }
+
+    void defineGlobalDouble(int slot, double value) {
+        ensureCapacity(slot);
+        setDouble(slot, value);
+    }
+
+    void assignGlobal(Token name, int slot, Object value) {
+        checkDefined(name, slot);
+        set(slot, value);
+    }
+
+    void assignGlobalDouble(Token name, int slot, double value) {
+        checkDefined(name, slot);
+        setDouble(slot, value);
+    }
+
+    private void checkDefined(Token name, int slot) {
+        if (!isDefined(slot)) {
+            throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
         }
+    }
+
+    private void ensureCapacity(int slot) {
+        if (slot < tags.length)
+            return;
 
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+        int size = Math.max(tags.length * 2, slot + 1);
+        tags = Arrays.copyOf(tags, size);
+        values = Arrays.copyOf(values, size);
+        numbers = Arrays.copyOf(numbers, size);
     }
 }
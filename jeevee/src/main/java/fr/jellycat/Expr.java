@@ -8,7 +8,10 @@ abstract class Expr {
         R visitConditionalExpr(Conditional expr);
         R visitLogicalExpr(Logical expr);
         R visitBinaryExpr(Binary expr);
+        R visitCallExpr(Call expr);
         R visitGroupingExpr(Grouping expr);
+        R visitInvariantExpr(Invariant expr);
+        R visitLambdaExpr(Lambda expr);
         R visitLiteralExpr(Literal expr);
         R visitUnaryExpr(Unary expr);
         R visitPostFixExpr(PostFix expr);
@@ -28,6 +31,9 @@ abstract class Expr {
 
         final Token name;
         final Expr value;
+
+        int depth = -1;
+        int slot = -1;
     }
 
     static class Conditional extends Expr {
@@ -79,6 +85,27 @@ abstract class Expr {
         final Expr left;
         final Token operator;
         final Expr right;
+
+        BinaryNode node = BinaryNode.UNINITIALIZED;
+    }
+
+    static class Call extends Expr {
+        Call(Expr callee, Token paren, List<Expr> arguments) {
+            this.callee = callee;
+            this.paren = paren;
+            this.arguments = arguments;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitCallExpr(this);
+        }
+
+        final Expr callee;
+        final Token paren;
+        final List<Expr> arguments;
+
+        Expr.Lambda checked;
     }
 
     static class Grouping extends Expr {
@@ -94,6 +121,42 @@ abstract class Expr {
         final Expr expression;
     }
 
+    static class Invariant extends Expr {
+        Invariant(Expr expression) {
+            this.expression = expression;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitInvariantExpr(this);
+        }
+
+        final Expr expression;
+
+        int slot = -1;
+    }
+
+    static class Lambda extends Expr {
+        Lambda(Token name, List<Token> params, List<Stmt> body) {
+            this.name = name;
+            this.params = params;
+            this.body = body;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitLambdaExpr(this);
+        }
+
+        final Token name;
+        final List<Token> params;
+        final List<Stmt> body;
+
+        int locals;
+        int[] captures;
+        int[] cells;
+    }
+
     static class Literal extends Expr {
         Literal(Object value) {
             this.value = value;
@@ -148,6 +211,9 @@ abstract class Expr {
         }
 
         final Token name;
+
+        int depth = -1;
+        int slot = -1;
     }
 
 
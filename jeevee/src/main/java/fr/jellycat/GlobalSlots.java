@@ -0,0 +1,33 @@
+package fr.jellycat;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+// The slot of each global, by name. Every program an engine compiles numbers its globals here, so a function made by
+// one program reads and writes the same globals when a context of another one calls it. Engines compile from any
+// thread, hence the locks.
+final class GlobalSlots {
+    private final Map<String, Integer> slots = new HashMap<>();
+
+    synchronized int slot(String name) {
+        Integer slot = slots.get(name);
+
+        if (slot == null) {
+            slot = slots.size();
+            slots.put(name, slot);
+        }
+
+        return slot;
+    }
+
+    // Null when no program named it yet.
+    synchronized Integer find(String name) {
+        return slots.get(name);
+    }
+
+    synchronized Set<String> names() {
+        return new HashSet<>(slots.keySet());
+    }
+}
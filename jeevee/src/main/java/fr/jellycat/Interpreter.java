@@ -1,17 +1,96 @@
 package fr.jellycat;
 
+import java.util.Arrays;
 import java.util.List;
 
 class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
-    private Environment environment = new Environment();
+    private static final int COMPILED = -2;
+    // What a call returned when it is the number in returnedNumber, which stayed unboxed.
+    private static final Object UNBOXED = new Object();
+
+    private final Environment globals = new Environment();
+    private Environment environment = globals;
+    // Hot loops move to compiled code unless every statement has to run through execute, like when profiling.
+    private final boolean compileLoops;
+    private final Metrics.Counters counters = new Metrics.Counters();
+    private final Output output;
+    private final Budget budget = new Budget();
+    // The numbering of the globals, which the closures made here need; null outside an Engine.
+    private final GlobalSlots globalSlots;
+    // The cells the running function captured; null in top-level code.
+    private Cell[] captures;
+    // Set by a return statement, until the call it returns from takes the value. Every statement list stops there.
+    private boolean returning;
+    private Object returned;
+    private double returnedNumber;
+    // Set by a return of a call, with its arguments in the frame after the running one, for the running call to
+    // make in its place.
+    private Closure tailCall;
+    private Token tailParen;
+    // The frames of calls, by call depth. A frame never outlives its call, since closures only keep Cells, so the
+    // next call at that depth takes it over: the function writes every slot before reading it.
+    private Environment[] frames = new Environment[16];
+    private int depth = 0;
+
+    Interpreter() {
+        this(new Output.Direct(), true);
+    }
+
+    Interpreter(Output output) {
+        this(output, true);
+    }
 
+    Interpreter(Output output, boolean compileLoops) {
+        this(output, compileLoops, null);
+    }
+
+    Interpreter(Output output, GlobalSlots globalSlots) {
+        this(output, true, globalSlots);
+    }
+
+    private Interpreter(Output output, boolean compileLoops, GlobalSlots globalSlots) {
+        this.output = output;
+        this.compileLoops = compileLoops;
+        this.globalSlots = globalSlots;
+    }
+
+    // A runtime error stops the statements and goes to the caller, with the globals as the error left them.
     void interpret(List<Stmt> statements) {
         try {
             for (Stmt statement : statements) {
                 execute(statement);
             }
-        } catch (RuntimeError error) {
-            Jeevee.runtimeError(error);
+        } finally {
+            Metrics.flush(counters);
+        }
+    }
+
+    // Calls a function from outside the script, with arguments that are script values, and returns what it returned.
+    Object call(Closure closure, Object[] arguments) {
+        Expr.Lambda function = closure.function;
+        if (arguments.length != function.params.size()) {
+            throw new RuntimeError(function.name, "Expected " + function.params.size() + " arguments but got "
+                    + arguments.length + ".");
+        }
+
+        try {
+            Environment frame = callFrame(function.locals);
+            for (int i = 0; i < arguments.length; i++) {
+                frame.set(i, arguments[i]);
+            }
+
+            depth++;
+            try {
+                call(closure, function.name);
+            } finally {
+                depth--;
+            }
+
+            Object value = returned;
+            returned = null;
+            return value == UNBOXED ? box(returnedNumber) : value;
+        } finally {
+            Metrics.flush(counters);
         }
     }
 
@@ -19,28 +98,65 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         try {
             Object value = evaluate(expression);
             return stringify(value);
-        } catch (RuntimeError error) {
-            Jeevee.runtimeError(error);
-            return null;
+        } finally {
+            Metrics.flush(counters);
         }
     }
 
+    Budget budget() {
+        return budget;
+    }
+
+    // Globals by the slot the resolver gave their name; null when the script never defined it.
+    Object global(int slot) {
+        return globals.isDefined(slot) ? globals.get(slot) : null;
+    }
+
+    boolean isDefined(int slot) {
+        return globals.isDefined(slot);
+    }
+
+    void defineGlobal(int slot, Object value) {
+        globals.defineGlobal(slot, value);
+    }
+
     private Object evaluate(Expr expr) {
         return expr.accept(this);
     }
 
-    private void execute(Stmt stmt) {
+    // Every statement runs through here; ProfilingInterpreter wraps it.
+    void execute(Stmt stmt) {
+        if (++counters.statements == Metrics.FLUSH_EVERY) {
+            Metrics.flush(counters);
+        }
         stmt.accept(this);
     }
 
+    // A scope the resolver folded into the enclosing frame (locals == 0) runs right there, without a new frame.
+    private void executeScope(List<Stmt> statements, int locals) {
+        if (locals > 0) {
+            try {
+                executeBlock(statements, newFrame(locals));
+            } finally {
+                budget.exitFrame(locals);
+            }
+            return;
+        }
+
+        // Indexed loops, so running a block does not allocate an iterator.
+        for (int i = 0; i < statements.size() && !returning; i++) {
+            execute(statements.get(i));
+        }
+    }
+
     private void executeBlock(List<Stmt> statements, Environment environment) {
         Environment previous = this.environment;
 
         try {
             this.environment = environment;
 
-            for (Stmt statement : statements) {
-                execute(statement);
+            for (int i = 0; i < statements.size() && !returning; i++) {
+                execute(statements.get(i));
             }
         } finally {
             this.environment = previous;
@@ -49,22 +165,32 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
+        executeScope(stmt.statements, stmt.locals);
         return null;
     }
 
     @Override
     public Void visitExpressionStmt(Stmt.Expression stmt) {
-        evaluate(stmt.expression);
+        if (!producesDouble(stmt.expression)) {
+            evaluate(stmt.expression);
+            return null;
+        }
+
+        try {
+            evaluateDouble(stmt.expression);
+        } catch (UnexpectedResultException e) {
+            // The value of an expression statement is discarded anyway.
+        }
+
         return null;
     }
 
     @Override
     public Void visitIfStmt(Stmt.If stmt) {
         if (isTruthy(evaluate(stmt.condition))) {
-            executeBlock(stmt.consequent, new Environment(environment));
+            executeScope(stmt.consequent, stmt.consequentLocals);
         } else if (stmt.alternate != null) {
-            executeBlock(stmt.alternate, new Environment(environment));
+            executeScope(stmt.alternate, stmt.alternateLocals);
         }
 
         return null;
@@ -72,34 +198,423 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitWhileStmt(Stmt.While stmt) {
+        if (stmt.locals == 0) {
+            loop(stmt);
+            return null;
+        }
+
+        // One frame serves every iteration of the loop.
+        Environment previous = this.environment;
+        try {
+            this.environment = newFrame(stmt.locals);
+            loop(stmt);
+        } finally {
+            this.environment = previous;
+            budget.exitFrame(stmt.locals);
+        }
+
+        return null;
+    }
+
+    private void loop(Stmt.While stmt) {
         while (isTruthy(evaluate(stmt.condition))) {
+            budget.iteration(stmt.keyword);
             execute(stmt.body);
+            if (returning)
+                return;
+
+            // backEdges is -1 once the loop is known not to run compiled.
+            if (compileLoops && stmt.backEdges >= 0 && ++stmt.backEdges >= LoopCompiler.THRESHOLD) {
+                if (stmt.compiled == null) {
+                    stmt.compiled = LoopCompiler.compile(stmt);
+                }
+
+                int backEdges = runCompiled(stmt.compiled);
+                if (backEdges == COMPILED)
+                    return;
+                stmt.backEdges = backEdges;
+            }
         }
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        if (stmt.locals == 0) {
+            count(stmt);
+            return null;
+        }
+
+        Environment previous = this.environment;
+        try {
+            this.environment = newFrame(stmt.locals);
+            count(stmt);
+        } finally {
+            this.environment = previous;
+            budget.exitFrame(stmt.locals);
+        }
+
         return null;
     }
 
+    // The counter stays in a Java local; the frame gets its value after each increment, for the body and for
+    // compiled code taking over.
+    private void count(Stmt.For stmt) {
+        execute(stmt.counter);
+
+        Environment frame = environment;
+        for (int i = 0; i < stmt.invariants.size(); i++) {
+            frame.clear(stmt.invariants.get(i).slot);
+        }
+
+        // The limit is invariant, so checking the operands once is enough.
+        Object start = frame.get(stmt.counter.slot);
+        Object limit = evaluate(stmt.limit);
+        checkNumberOperands(stmt.operator, start, limit);
+
+        double counter = Numbers.toDouble(start);
+        double end = Numbers.toDouble(limit);
+
+        // Integer start, limit and step, the usual case, count on a long; the counter cannot step out of the range
+        // where doubles hold every integer, so it goes through the same values.
+        if (Numbers.isIntegral(counter) && Numbers.isIntegral(end) && Numbers.isIntegral(stmt.step)
+                && Math.abs(end) + Math.abs(stmt.step) <= Numbers.MAX_EXACT) {
+            countIntegers(stmt, frame, (long) counter, (long) end);
+            return;
+        }
+
+        int slot = stmt.counter.slot;
+        while (inBounds(stmt.operator.type, counter, end)) {
+            budget.iteration(stmt.operator);
+            execute(stmt.body);
+            if (returning)
+                return;
+            counter += stmt.step;
+            frame.setDouble(slot, counter);
+
+            if (backEdge(stmt))
+                return;
+        }
+    }
+
+    private void countIntegers(Stmt.For stmt, Environment frame, long counter, long end) {
+        long step = (long) stmt.step;
+        int slot = stmt.counter.slot;
+
+        while (inBounds(stmt.operator.type, counter, end)) {
+            budget.iteration(stmt.operator);
+            execute(stmt.body);
+            if (returning)
+                return;
+            counter += step;
+            frame.setDouble(slot, counter);
+
+            if (backEdge(stmt))
+                return;
+        }
+    }
+
+    // Counts an iteration and hands the rest of a hot loop to compiled code; true when compiled code finished it.
+    private boolean backEdge(Stmt.For stmt) {
+        if (compileLoops && stmt.backEdges >= 0 && ++stmt.backEdges >= LoopCompiler.THRESHOLD) {
+            if (stmt.compiled == null) {
+                stmt.compiled = LoopCompiler.compile(stmt);
+            }
+
+            int backEdges = runCompiled(stmt.compiled);
+            if (backEdges == COMPILED)
+                return true;
+            stmt.backEdges = backEdges;
+        }
+
+        return false;
+    }
+
+    private static boolean inBounds(TokenType operator, long counter, long limit) {
+        switch (operator) {
+            case LESS:
+                return counter < limit;
+            case LESS_EQUAL:
+                return counter <= limit;
+            case GREATER:
+                return counter > limit;
+            default:
+                return counter >= limit;
+        }
+    }
+
+    private static boolean inBounds(TokenType operator, double counter, double limit) {
+        switch (operator) {
+            case LESS:
+                return counter < limit;
+            case LESS_EQUAL:
+                return counter <= limit;
+            case GREATER:
+                return counter > limit;
+            default:
+                return counter >= limit;
+        }
+    }
+
+    // On-stack replacement: the rest of the loop runs in compiled code, starting from the values in the frames.
+    // Returns COMPILED when it did, otherwise the loop's new back-edge count: 0 to try again later after a
+    // variable no longer held a number, -1 to stay interpreted for good.
+    private int runCompiled(CompiledLoop compiled) {
+        if (compiled == null)
+            return -1;
+        if (compiled.run(environment, globals, output, budget))
+            return COMPILED;
+
+        return compiled.deoptimize() ? 0 : -1;
+    }
+
     @Override
     public Void visitPrintStmt(Stmt.Print stmt) {
-        Object value = evaluate(stmt.expression);
-        Jeevee.log(stringify(value));
+        Object value;
+        if (producesDouble(stmt.expression)) {
+            try {
+                output.println(evaluateDouble(stmt.expression));
+                return null;
+            } catch (UnexpectedResultException e) {
+                value = e.result;
+            }
+        } else {
+            value = evaluate(stmt.expression);
+        }
+
+        if (Numbers.isNumber(value)) {
+            output.println(Numbers.toDouble(value));
+        } else {
+            output.println(stringify(value));
+        }
         return null;
     }
 
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null && producesDouble(stmt.initializer)) {
+            try {
+                double value = evaluateDouble(stmt.initializer);
+                if (stmt.depth == -1) {
+                    globals.defineGlobalDouble(stmt.slot, value);
+                } else if (stmt.depth == Resolver.CELL) {
+                    define(stmt, box(value));
+                } else {
+                    environment.setDouble(stmt.slot, value);
+                }
+                return null;
+            } catch (UnexpectedResultException e) {
+                define(stmt, e.result);
+                return null;
+            }
+        }
+
         Object value = null;
         if (stmt.initializer != null) {
             value = evaluate(stmt.initializer);
         }
 
-        environment.define(stmt.name.lexeme, value);
+        define(stmt, value);
         return null;
     }
 
+    // The cell goes into the frame before the closure is made, so a function calling itself captures it.
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        if (stmt.depth == Resolver.CELL) {
+            Cell cell = new Cell(null);
+            environment.set(stmt.slot, cell);
+            cell.value = closure(stmt.function);
+        } else if (stmt.depth == -1) {
+            globals.defineGlobal(stmt.slot, closure(stmt.function));
+        } else {
+            environment.set(stmt.slot, closure(stmt.function));
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.tail) {
+            Expr.Call call = (Expr.Call) stmt.value;
+            tailCall = prepare(call);
+            tailParen = call.paren;
+        } else if (stmt.value != null && producesDouble(stmt.value)) {
+            try {
+                returnedNumber = evaluateDouble(stmt.value);
+                returned = UNBOXED;
+            } catch (UnexpectedResultException e) {
+                returned = e.result;
+            }
+        } else if (stmt.value != null) {
+            returned = evaluate(stmt.value);
+        }
+
+        // Only now, as the value may call functions too.
+        returning = true;
+        return null;
+    }
+
+    @Override
+    public Object visitLambdaExpr(Expr.Lambda expr) {
+        return closure(expr);
+    }
+
+    private Closure closure(Expr.Lambda function) {
+        Cell[] cells = new Cell[function.captures.length];
+        for (int i = 0; i < cells.length; i++) {
+            int source = function.captures[i];
+            cells[i] = source >= 0 ? (Cell) environment.get(source) : captures[-1 - source];
+        }
+
+        budget.closure(function.name, cells.length);
+        return new Closure(function, cells, globalSlots);
+    }
+
+    @Override
+    public Object visitCallExpr(Expr.Call expr) {
+        invoke(expr);
+
+        Object value = returned;
+        returned = null;
+        return value == UNBOXED ? box(returnedNumber) : value;
+    }
+
+    private double callDouble(Expr.Call expr) throws UnexpectedResultException {
+        invoke(expr);
+
+        Object value = returned;
+        returned = null;
+        return value == UNBOXED ? returnedNumber : expectDouble(value);
+    }
+
+    // Leaves what the function returned in returned, for the caller to take.
+    private void invoke(Expr.Call expr) {
+        Closure closure = prepare(expr);
+
+        depth++;
+        try {
+            call(closure, expr.paren);
+        } finally {
+            depth--;
+        }
+    }
+
+    // Returns the function the call makes, with the arguments in the frame at the current depth.
+    private Closure prepare(Expr.Call expr) {
+        Object callee = evaluate(expr.callee);
+        if (!(callee instanceof Closure))
+            throw new RuntimeError(expr.paren, "Can only call functions.");
+
+        Closure closure = (Closure) callee;
+        Expr.Lambda function = closure.function;
+
+        // A site always passes as many arguments, so it checks them against each function it calls once.
+        if (expr.checked != function) {
+            if (expr.arguments.size() != function.params.size()) {
+                throw new RuntimeError(expr.paren, "Expected " + function.params.size() + " arguments but got "
+                        + expr.arguments.size() + ".");
+            }
+            expr.checked = function;
+        }
+
+        // The arguments go straight into the slots of the parameters, numbers unboxed. The frame is taken first, so
+        // the calls among them take the next ones.
+        Environment frame = callFrame(function.locals);
+        depth++;
+        try {
+            for (int i = 0; i < expr.arguments.size(); i++) {
+                Expr argument = expr.arguments.get(i);
+                if (producesDouble(argument)) {
+                    try {
+                        frame.setDouble(i, evaluateDouble(argument));
+                    } catch (UnexpectedResultException e) {
+                        frame.set(i, e.result);
+                    }
+                } else {
+                    frame.set(i, evaluate(argument));
+                }
+            }
+        } finally {
+            depth--;
+        }
+
+        return closure;
+    }
+
+    private Environment callFrame(int locals) {
+        if (depth == frames.length) {
+            frames = Arrays.copyOf(frames, depth * 2);
+        }
+
+        Environment frame = frames[depth];
+        if (frame == null || frame.tags.length < locals) {
+            counters.frames++;
+            frame = new Environment(null, locals);
+            frames[depth] = frame;
+        }
+
+        return frame;
+    }
+
+    // Runs the body in the frame of the call, which holds the arguments and is sized for every local of the function.
+    // A call returned as is comes back here with its arguments in the next frame, and the two frames trade places:
+    // any number of tail calls run in constant stack, without taking a frame.
+    private void call(Closure closure, Token paren) {
+        Environment environment = this.environment;
+        Cell[] captures = this.captures;
+
+        try {
+            while (true) {
+                Expr.Lambda function = closure.function;
+                Environment frame = frames[depth - 1];
+                for (int slot : function.cells) {
+                    frame.set(slot, new Cell(frame.get(slot)));
+                }
+
+                budget.call(paren, function.locals);
+                this.environment = frame;
+                this.captures = closure.captures;
+
+                try {
+                    List<Stmt> body = function.body;
+                    for (int i = 0; i < body.size() && !returning; i++) {
+                        execute(body.get(i));
+                    }
+                } finally {
+                    budget.exitFrame(function.locals);
+                }
+
+                returning = false;
+                if (tailCall == null)
+                    return;
+
+                closure = tailCall;
+                paren = tailParen;
+                tailCall = null;
+                frames[depth - 1] = frames[depth];
+                frames[depth] = frame;
+            }
+        } catch (StackOverflowError e) {
+            throw new RuntimeError(paren, "Stack overflow.");
+        } finally {
+            this.environment = environment;
+            this.captures = captures;
+        }
+    }
+
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
+        if (producesDouble(expr.value)) {
+            try {
+                return box(assignDouble(expr));
+            } catch (UnexpectedResultException e) {
+                return e.result;
+            }
+        }
+
         Object value = evaluate(expr.value);
-        environment.assign(expr.name, value);
+        assign(expr.name, expr.depth, expr.slot, value);
         return value;
     }
 
@@ -113,115 +628,78 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return evaluate(expr.expression);
     }
 
+    // Evaluated the first time the loop needs it, then read back from its slot until the loop starts over.
     @Override
-    public Object visitPostFixExpr(Expr.PostFix expr) {
-        Object left = evaluate(expr.left);
-        Expr.Variable var = null;
+    public Object visitInvariantExpr(Expr.Invariant expr) {
+        if (environment.isDefined(expr.slot))
+            return environment.get(expr.slot);
 
-        if (expr.left instanceof Expr.Variable) {
-            var = (Expr.Variable) expr.left;
-        }
-
-        switch (expr.operator.type) {
-            case MINUS_MINUS:
-                checkNumberOperand(expr.operator, left);
-                if (var != null)
-                    environment.assign(var.name, (double) left - 1);
-                return (double) left - 1;
-            case PLUS_PLUS:
-                checkNumberOperand(expr.operator, left);
-                if (var != null)
-                    environment.assign(var.name, (double) left + 1);
-                return (double) left + 1;
-            default:
-                break;
-        }
+        Object value = evaluate(expr.expression);
+        environment.set(expr.slot, value);
+        return value;
+    }
 
-        // Unreachable.
-        return null;
+    @Override
+    public Object visitPostFixExpr(Expr.PostFix expr) {
+        return box(postFixDouble(expr));
     }
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
-        Object right = evaluate(expr.right);
-
         switch (expr.operator.type) {
             case MINUS:
-                checkNumberOperand(expr.operator, right);
-                return -(double) right;
-            case BANG:
-                return !isTruthy(right);
             case MINUS_MINUS:
-                checkNumberOperand(expr.operator, right);
-                return (double) right - 1;
             case PLUS_PLUS:
-                checkNumberOperand(expr.operator, right);
-                return (double) right + 1;
+                return box(unaryDouble(expr));
+            case BANG:
+                return !isTruthy(evaluate(expr.right));
             default:
                 break;
         }
 
+        evaluate(expr.right);
+
         // Unreachable.
         return null;
     }
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return environment.get(expr.name);
+        if (expr.depth < -1)
+            return cell(expr.depth, expr.slot).value;
+
+        Environment frame = lookup(expr.depth);
+        if (frame.isNumber(expr.slot)) {
+            counters.boxed++;
+        }
+
+        return expr.depth == -1 ? frame.getGlobal(expr.name, expr.slot) : frame.get(expr.slot);
     }
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
-        Object left = evaluate(expr.left);
-        Object right = evaluate(expr.right);
-
-        switch (expr.operator.type) {
-            case MINUS:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left - (double) right;
-            case PLUS: {
-                if (left instanceof Double && right instanceof Double) {
-                    return (double) left + (double) right;
-                }
+        BinaryNode node = expr.node;
 
-                if (left instanceof String && right instanceof String) {
-                    return (String) left + (String) right;
-                }
-
-                throw new RuntimeError(expr.operator, "Operands must be numbers or strings");
+        if (node instanceof BinaryNode.Arithmetic) {
+            try {
+                return box(arithmetic(expr, (BinaryNode.Arithmetic) node));
+            } catch (UnexpectedResultException e) {
+                return e.result;
             }
-            case SLASH:
-                checkNumberOperands(expr.operator, left, right);
-                checkDivisionByZero(expr.operator, right);
-                return (double) left / (double) right;
-            case STAR:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left * (double) right;
-            case PERCENT:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left % (double) right;
-            case GREATER:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left > (double) right;
-            case GREATER_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left >= (double) right;
-            case LESS:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left < (double) right;
-            case LESS_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left <= (double) right;
-            case EQUAL_EQUAL:
-                return isEqual(left, right);
-            case BANG_EQUAL:
-                return !isEqual(left, right);
-            default:
-                break;
         }
 
-        // Unreachable
-        return null;
+        if (node instanceof BinaryNode.Comparison) {
+            return comparison(expr, (BinaryNode.Comparison) node);
+        }
+
+        Object left = evaluate(expr.left);
+        Object right = evaluate(expr.right);
+
+        Object result = node.execute(expr, left, right);
+        if (result instanceof Rope) {
+            budget.string(expr.operator, ((Rope) result).stored(left));
+        }
+        return result;
     }
 
     @Override
@@ -252,27 +730,263 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return evaluate(expr.right);
     }
 
-    private void checkNumberOperand(Token operator, Object operand) {
-        if (operand instanceof Double)
-            return;
-        throw new RuntimeError(operator, "Operand must be a number.");
+    // Evaluates an expression whose value is expected to be a number without boxing it. Anything else comes back
+    // through UnexpectedResultException.
+    private double evaluateDouble(Expr expr) throws UnexpectedResultException {
+        if (expr instanceof Expr.Variable) {
+            return variableDouble((Expr.Variable) expr);
+        } else if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            if (binary.node instanceof BinaryNode.Arithmetic) {
+                return arithmetic(binary, (BinaryNode.Arithmetic) binary.node);
+            }
+        } else if (expr instanceof Expr.Grouping) {
+            return evaluateDouble(((Expr.Grouping) expr).expression);
+        } else if (expr instanceof Expr.Invariant) {
+            return invariantDouble((Expr.Invariant) expr);
+        } else if (expr instanceof Expr.Assign) {
+            return assignDouble((Expr.Assign) expr);
+        } else if (expr instanceof Expr.PostFix) {
+            return postFixDouble((Expr.PostFix) expr);
+        } else if (expr instanceof Expr.Call) {
+            return callDouble((Expr.Call) expr);
+        } else if (expr instanceof Expr.Unary) {
+            TokenType operator = ((Expr.Unary) expr).operator.type;
+            if (operator == TokenType.MINUS || operator == TokenType.MINUS_MINUS || operator == TokenType.PLUS_PLUS) {
+                return unaryDouble((Expr.Unary) expr);
+            }
+        }
+
+        return expectDouble(evaluate(expr));
+    }
+
+    // Whether the unboxed path is worth taking, judging from the literal, the site's specialization or the slot's tag.
+    private boolean producesDouble(Expr expr) {
+        if (expr instanceof Expr.Variable) {
+            Expr.Variable variable = (Expr.Variable) expr;
+            if (variable.depth < -1)
+                return Numbers.isNumber(cell(variable.depth, variable.slot).value);
+            return frame(variable.depth).isNumber(variable.slot);
+        } else if (expr instanceof Expr.Binary) {
+            return ((Expr.Binary) expr).node instanceof BinaryNode.Arithmetic;
+        } else if (expr instanceof Expr.Literal) {
+            return Numbers.isNumber(((Expr.Literal) expr).value);
+        } else if (expr instanceof Expr.Grouping) {
+            return producesDouble(((Expr.Grouping) expr).expression);
+        } else if (expr instanceof Expr.Invariant) {
+            Expr.Invariant invariant = (Expr.Invariant) expr;
+            if (environment.isDefined(invariant.slot))
+                return environment.isNumber(invariant.slot);
+            return producesDouble(invariant.expression);
+        } else if (expr instanceof Expr.Assign) {
+            return producesDouble(((Expr.Assign) expr).value);
+        } else if (expr instanceof Expr.PostFix) {
+            return true;
+        } else if (expr instanceof Expr.Unary) {
+            TokenType operator = ((Expr.Unary) expr).operator.type;
+            return operator == TokenType.MINUS || operator == TokenType.MINUS_MINUS || operator == TokenType.PLUS_PLUS;
+        }
+
+        return false;
+    }
+
+    private double variableDouble(Expr.Variable expr) throws UnexpectedResultException {
+        if (expr.depth < -1)
+            return expectDouble(cell(expr.depth, expr.slot).value);
+
+        Environment frame = lookup(expr.depth);
+        if (frame.isNumber(expr.slot)) {
+            return frame.numbers[expr.slot];
+        }
+
+        throw new UnexpectedResultException(expr.depth == -1 ? frame.getGlobal(expr.name, expr.slot)
+                : frame.get(expr.slot));
+    }
+
+    private double invariantDouble(Expr.Invariant expr) throws UnexpectedResultException {
+        if (environment.isNumber(expr.slot))
+            return environment.numbers[expr.slot];
+        if (environment.isDefined(expr.slot))
+            throw new UnexpectedResultException(environment.get(expr.slot));
+
+        double value;
+        try {
+            value = evaluateDouble(expr.expression);
+        } catch (UnexpectedResultException e) {
+            environment.set(expr.slot, e.result);
+            throw e;
+        }
+
+        environment.setDouble(expr.slot, value);
+        return value;
+    }
+
+    private double arithmetic(Expr.Binary expr, BinaryNode.Arithmetic node) throws UnexpectedResultException {
+        double left;
+        try {
+            left = evaluateDouble(expr.left);
+        } catch (UnexpectedResultException e) {
+            return expectDouble(BinaryNode.generalize(expr, e.result, evaluate(expr.right)));
+        }
+
+        double right;
+        try {
+            right = evaluateDouble(expr.right);
+        } catch (UnexpectedResultException e) {
+            return expectDouble(BinaryNode.generalize(expr, left, e.result));
+        }
+
+        return node.apply(expr, left, right);
+    }
+
+    private Object comparison(Expr.Binary expr, BinaryNode.Comparison node) {
+        double left;
+        try {
+            left = evaluateDouble(expr.left);
+        } catch (UnexpectedResultException e) {
+            return BinaryNode.generalize(expr, e.result, evaluate(expr.right));
+        }
+
+        double right;
+        try {
+            right = evaluateDouble(expr.right);
+        } catch (UnexpectedResultException e) {
+            return BinaryNode.generalize(expr, left, e.result);
+        }
+
+        return node.apply(left, right);
+    }
+
+    private double assignDouble(Expr.Assign expr) throws UnexpectedResultException {
+        double value;
+        try {
+            value = evaluateDouble(expr.value);
+        } catch (UnexpectedResultException e) {
+            assign(expr.name, expr.depth, expr.slot, e.result);
+            throw e;
+        }
+
+        assignDouble(expr.name, expr.depth, expr.slot, value);
+        return value;
+    }
+
+    private double postFixDouble(Expr.PostFix expr) {
+        double value = operandDouble(expr.operator, expr.left);
+        value = expr.operator.type == TokenType.MINUS_MINUS ? value - 1 : value + 1;
+
+        if (expr.left instanceof Expr.Variable) {
+            Expr.Variable var = (Expr.Variable) expr.left;
+            assignDouble(var.name, var.depth, var.slot, value);
+        }
+
+        return value;
     }
 
-    private void checkNumberOperands(Token operator, Object left, Object right) {
-        if (left instanceof Double && right instanceof Double)
+    private double unaryDouble(Expr.Unary expr) {
+        double value = operandDouble(expr.operator, expr.right);
+
+        switch (expr.operator.type) {
+            case MINUS_MINUS:
+                return value - 1;
+            case PLUS_PLUS:
+                return value + 1;
+            default:
+                return -value;
+        }
+    }
+
+    private double operandDouble(Token operator, Expr operand) {
+        try {
+            return evaluateDouble(operand);
+        } catch (UnexpectedResultException e) {
+            throw new RuntimeError(operator, "Operand must be a number.");
+        }
+    }
+
+    private static double expectDouble(Object value) throws UnexpectedResultException {
+        if (value instanceof Double)
+            return (double) value;
+        if (value instanceof Long)
+            return (long) value;
+        throw new UnexpectedResultException(value);
+    }
+
+    // The Cell of a variable some closure captures: from the running closure, or from the frame declaring it.
+    private Cell cell(int depth, int slot) {
+        return depth == Resolver.CAPTURED ? captures[slot] : (Cell) environment.values[slot];
+    }
+
+    private Environment frame(int depth) {
+        return depth == -1 ? globals : environment.ancestor(depth);
+    }
+
+    // frame() for the reads and writes of a variable, which Metrics counts by depth.
+    private Environment lookup(int depth) {
+        if (depth == -1) {
+            counters.globalLookups++;
+            return globals;
+        }
+
+        counters.lookup(depth);
+        return environment.ancestor(depth);
+    }
+
+    private Environment newFrame(int locals) {
+        counters.frames++;
+        budget.enterFrame(locals);
+        return new Environment(environment, locals);
+    }
+
+    private Object box(double value) {
+        counters.boxed++;
+        return Numbers.box(value);
+    }
+
+    private void define(Stmt.Var stmt, Object value) {
+        if (stmt.depth == -1) {
+            globals.defineGlobal(stmt.slot, value);
+        } else if (stmt.depth == Resolver.CELL) {
+            environment.set(stmt.slot, new Cell(value));
+        } else {
+            environment.set(stmt.slot, value);
+        }
+    }
+
+    private void assign(Token name, int depth, int slot, Object value) {
+        if (depth == -1) {
+            lookup(-1).assignGlobal(name, slot, value);
+        } else if (depth < -1) {
+            cell(depth, slot).value = value;
+        } else {
+            lookup(depth).set(slot, value);
+        }
+    }
+
+    private void assignDouble(Token name, int depth, int slot, double value) {
+        if (depth == -1) {
+            lookup(-1).assignGlobalDouble(name, slot, value);
+        } else if (depth < -1) {
+            cell(depth, slot).value = box(value);
+        } else {
+            lookup(depth).setDouble(slot, value);
+        }
+    }
+
+    static void checkNumberOperands(Token operator, Object left, Object right) {
+        if (Numbers.isNumber(left) && Numbers.isNumber(right))
             return;
         throw new RuntimeError(operator, "Operands must be numbers.");
     }
 
-    private void checkDivisionByZero(Token operator, Object operand) {
-        if (operand instanceof Double && (double) operand == 0) {
+    static void checkDivisionByZero(Token operator, Object operand) {
+        if (Numbers.isNumber(operand) && Numbers.toDouble(operand) == 0) {
             throw new RuntimeError(operator, "Division by zero is not possible.");
         }
 
         return;
     }
 
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if (object == null)
             return false;
         if (object instanceof Boolean)
@@ -281,26 +995,28 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return true;
     }
 
-    private boolean isEqual(Object a, Object b) {
+    static boolean isEqual(Object a, Object b) {
+        a = Rope.flatten(a);
+        b = Rope.flatten(b);
+
         if (a == null && b == null)
             return true;
         if (a == null)
             return false;
+        if (Numbers.isNumber(a))
+            return Numbers.isNumber(b) && Numbers.equal(a, b);
 
         return a.equals(b);
     }
 
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null)
             return "nil";
 
-        if (object instanceof Double) {
-            String text = object.toString();
-            if (text.endsWith(".0")) {
-                text = text.substring(0, text.length() - 2);
-            }
-            return text;
-        }
+        if (object instanceof Long)
+            return Numbers.toString((long) object);
+        if (object instanceof Double)
+            return Numbers.toString((double) object);
 
         return object.toString();
     }
@@ -3,41 +3,208 @@ package fr.jellycat;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 
+import fr.jellycat.vm.Chunk;
+import fr.jellycat.vm.VM;
+import fr.jellycat.vm.VmError;
+
 public final class Jeevee {
-    private static final Interpreter interpreter = new Interpreter();
-    static boolean hadError = false;
-    static boolean hadRuntimeError = false;
+    private static final Resolver resolver = new Resolver();
+    private static Interpreter interpreter;
+    private static Profile profile = null;
+    private static final VM vm = new VM(Jeevee::log);
+    private static boolean useVm = false;
+    private static int optLevel = 2;
+    private static boolean profiling = false;
+    private static boolean stats = false;
+    private static boolean outputThread = false;
+    private static boolean runner = false;
+    private static int jobs = 0;
+    private static long fuel = Budget.UNLIMITED;
+    private static long memory = Budget.UNLIMITED;
+    private static Output output = new Output.Direct();
+    private static boolean hadError = false;
+    private static boolean hadRuntimeError = false;
     static String ANSI_BOLD = "\u001B[1m";
     static String ANSI_RED = "\u001B[31m";
     static String ANSI_BLUE = "\u001B[34m";
     static String ANSI_RESET = "\u001B[0m";
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.print("Usage: jeevee [script]");
-            System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
-        } else {
-            runPrompt();
+        List<String> scripts = new ArrayList<>();
+
+        for (String arg : args) {
+            if (arg.equals("--vm")) {
+                useVm = true;
+            } else if (arg.equals("--profile")) {
+                profiling = true;
+            } else if (arg.equals("--stats")) {
+                stats = true;
+            } else if (arg.equals("--output-thread")) {
+                outputThread = true;
+            } else if (arg.equals("--runner")) {
+                runner = true;
+            } else if (arg.startsWith("--jobs=")) {
+                jobs = parseJobs(arg.substring("--jobs=".length()));
+            } else if (arg.startsWith("--fuel=")) {
+                fuel = parseLimit(arg.substring("--fuel=".length()));
+            } else if (arg.startsWith("--memory=")) {
+                memory = parseLimit(arg.substring("--memory=".length()));
+            } else if (arg.startsWith("--opt-level=")) {
+                optLevel = parseOptLevel(arg.substring("--opt-level=".length()));
+            } else if (!arg.startsWith("--")) {
+                scripts.add(arg);
+            } else {
+                usage();
+            }
+        }
+
+        // The runner takes any number of scripts and runs them on the tree-walker, one job per script by default.
+        if (runner ? scripts.isEmpty() || useVm || profiling || outputThread : jobs > 0 || scripts.size() > 1) {
+            usage();
+        }
+        String script = scripts.isEmpty() ? null : scripts.get(0);
+
+        // Profiles and budgets are of tree-walked scripts.
+        boolean limited = fuel != Budget.UNLIMITED || memory != Budget.UNLIMITED;
+        if ((profiling && (useVm || script == null)) || (limited && useVm)) {
+            usage();
+        }
+
+        Metrics.registerIfEnabled();
+        if (stats) {
+            // A hook, so the dump also happens on System.exit after errors.
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> Metrics.print(System.err)));
+        }
+
+        if (runner) {
+            System.exit(Runner.run(scripts, jobs > 0 ? jobs : scripts.size(), optLevel, fuel, memory, System.out));
+        }
+
+        // Styling and a line at a time are for a terminal; pipes and files get plain text in large writes.
+        boolean interactive = System.console() != null;
+        if (!interactive) {
+            ANSI_BOLD = ANSI_RED = ANSI_BLUE = ANSI_RESET = "";
+        }
+        output = outputThread ? new Output.Threaded(System.out) : new Output.Buffered(System.out, interactive);
+        if (interactive) {
+            output = new Output.Styled(output, ANSI_BOLD + ANSI_BLUE, ANSI_RESET);
+        }
+        interpreter = new Interpreter(output);
+
+        try {
+            if (script != null) {
+                if (profiling) {
+                    profile = new Profile(Paths.get(script).getFileName().toString());
+                    interpreter = new ProfilingInterpreter(profile, output);
+                }
+                interpreter.budget().limitFuel(fuel);
+                interpreter.budget().limitMemory(memory);
+
+                runFile(script);
+            } else {
+                runPrompt();
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    private static void usage() {
+        System.out.print("Usage: jeevee [--vm | --profile] [--stats] [--output-thread] [--opt-level=0|1|2]"
+                + " [--fuel=N] [--memory=BYTES] [script]\n"
+                + "       jeevee --runner [--jobs=N] [--stats] [--opt-level=0|1|2] [--fuel=N] [--memory=BYTES] script...");
+        System.exit(64);
+    }
+
+    private static int parseJobs(String value) {
+        try {
+            int jobs = Integer.parseInt(value);
+            if (jobs > 0)
+                return jobs;
+        } catch (NumberFormatException e) {
+            // Falls through to the usage.
         }
+
+        usage();
+        return 0;
+    }
+
+    private static long parseLimit(String value) {
+        try {
+            long limit = Long.parseLong(value);
+            if (limit > 0)
+                return limit;
+        } catch (NumberFormatException e) {
+            // Falls through to the usage.
+        }
+
+        usage();
+        return 0;
+    }
+
+    private static int parseOptLevel(String value) {
+        if (value.equals("0") || value.equals("1") || value.equals("2"))
+            return Integer.parseInt(value);
+
+        usage();
+        return 0;
     }
 
     private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        // The scanner decodes straight from the mapped file; the mapping outlives the channel.
+        ByteBuffer source;
+        try (FileChannel channel = FileChannel.open(Paths.get(path))) {
+            source = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        ProgramCache cache = ProgramCache.open(optLevel);
+        if (cache == null) {
+            run(path, new Scanner(source, StandardCharsets.UTF_8));
+        } else {
+            long start = System.nanoTime();
+            byte[] key = cache.key(source);
+            List<Stmt> statements = cache.load(key);
+
+            if (statements != null) {
+                Metrics.loadedFromCache(path, System.nanoTime() - start);
+            } else {
+                statements = compile(path, new Scanner(source, StandardCharsets.UTF_8));
+                if (statements != null) {
+                    cache.store(key, statements);
+                }
+            }
 
+            if (statements != null) {
+                execute(statements);
+            }
+        }
+
+        output.close();
         if (hadError)
             System.exit(65);
+
+        if (profile != null) {
+            writeProfile(Paths.get(path).getFileName() + ".collapsed");
+        }
+
         if (hadRuntimeError)
             System.exit(70);
     }
 
+    // Collapsed stacks for flame graph tools in the current directory, the hottest lines on stderr.
+    private static void writeProfile(String collapsed) throws IOException {
+        profile.writeCollapsed(Paths.get(collapsed));
+        profile.printSummary(System.err, 20);
+        System.err.println("Stacks written to " + collapsed);
+    }
+
     private static void runPrompt() throws IOException {
         InputStreamReader input = new InputStreamReader(System.in);
         BufferedReader reader = new BufferedReader(input);
@@ -45,20 +212,23 @@ public final class Jeevee {
         for (;;) {
             hadError = false;
 
+            output.flush();
             System.out.print("> ");
-            Scanner scanner = new Scanner(reader.readLine());
-            List<Token> tokens = scanner.scanTokens();
-
-            Parser parser = new Parser(tokens);
+            Parser parser = new Parser(new Scanner(reader.readLine()));
             Object syntax = parser.parseREPL();
 
+            report(parser.diagnostics());
             if (hadError)
                 continue;
 
             if (syntax instanceof List) {
-                interpreter.interpret((List<Stmt>) syntax);
+                List<Stmt> statements = optimize((List<Stmt>) syntax);
+                resolver.resolve(statements);
+                execute(statements);
             } else if (syntax instanceof Expr) {
-                String result = interpreter.interpret((Expr) syntax);
+                Expr expression = optimize((Expr) syntax);
+                resolver.resolve(expression);
+                String result = evaluate(expression);
                 if (result != null) {
                     Jeevee.log("= " + result);
                 }
@@ -66,46 +236,111 @@ public final class Jeevee {
         }
     }
 
-    private static void run(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-        Parser parser = new Parser(tokens);
-        List<Stmt> statements = parser.parse();
+    private static void run(String script, Scanner scanner) {
+        List<Stmt> statements = compile(script, scanner);
+        if (statements != null) {
+            execute(statements);
+        }
+    }
+
+    // Null when there was a syntax error.
+    private static List<Stmt> compile(String script, Scanner scanner) {
+        Parser parser = new Parser(scanner);
+        List<Stmt> statements = Engine.parse(script, parser);
 
-        // Stop if there was a syntax error.
+        report(parser.diagnostics());
         if (hadError)
-            return;
+            return null;
 
-        interpreter.interpret(statements);
+        statements = optimize(statements);
+        resolver.resolve(statements);
+        return statements;
+    }
 
+    private static List<Stmt> optimize(List<Stmt> statements) {
+        if (optLevel == 0)
+            return statements;
+
+        return new Optimizer(optLevel).optimize(statements);
     }
 
-    static void error(int line, int column, String message) {
-        report(line, column, "", message);
+    private static Expr optimize(Expr expression) {
+        if (optLevel == 0)
+            return expression;
+
+        return new Optimizer(optLevel).optimize(expression);
     }
 
-    private static void report(int line, int column, String where, String message) {
-        System.err.println(
-                ANSI_BOLD + ANSI_RED + "Error" + where + " (" + line + ":" + column + "): " + message + ANSI_RESET);
-        hadError = true;
+    private static void execute(List<Stmt> statements) {
+        if (!useVm) {
+            try {
+                interpreter.interpret(statements);
+            } catch (RuntimeError error) {
+                runtimeError(Diagnostic.runtime(error));
+            }
+            return;
+        }
+
+        BytecodeCompiler compiler = new BytecodeCompiler();
+        Chunk chunk = compiler.compile(statements);
+        if (chunk == null) {
+            report(compiler.error());
+            return;
+        }
+
+        try {
+            vm.run(chunk);
+        } catch (VmError error) {
+            runtimeError(Diagnostic.runtime(error.line, error.column, error.getMessage()));
+        }
     }
 
-    static void error(Token token, int column, String message) {
-        if (token.type == TokenType.EOF) {
-            report(token.line, column, " at end", message);
-        } else {
-            report(token.line, column, " at '" + token.lexeme + "'", message);
+    private static String evaluate(Expr expression) {
+        if (!useVm) {
+            try {
+                return interpreter.interpret(expression);
+            } catch (RuntimeError error) {
+                runtimeError(Diagnostic.runtime(error));
+                return null;
+            }
         }
+
+        BytecodeCompiler compiler = new BytecodeCompiler();
+        Chunk chunk = compiler.compileExpression(expression);
+        if (chunk == null) {
+            report(compiler.error());
+            return null;
+        }
+
+        try {
+            return VM.stringify(vm.run(chunk));
+        } catch (VmError error) {
+            runtimeError(Diagnostic.runtime(error.line, error.column, error.getMessage()));
+            return null;
+        }
+    }
+
+    private static void report(List<Diagnostic> diagnostics) {
+        for (Diagnostic diagnostic : diagnostics) {
+            report(diagnostic);
+        }
+    }
+
+    private static void report(Diagnostic diagnostic) {
+        // What the script printed before the error comes first.
+        output.flush();
+        System.err.println(ANSI_BOLD + ANSI_RED + diagnostic + ANSI_RESET);
+        hadError = true;
     }
 
-    static void runtimeError(RuntimeError error) {
-        System.err.println(ANSI_BOLD + ANSI_RED +
-                "Runtime error -> (" + error.token.line + ":" + error.token.column + ")\n" + error.getMessage()
-                + ANSI_RESET);
+    private static void runtimeError(Diagnostic diagnostic) {
+        output.flush();
+        System.err.println(ANSI_BOLD + ANSI_RED + diagnostic + ANSI_RESET);
         hadRuntimeError = true;
+        Metrics.RUNTIME_ERRORS.increment();
     }
 
     static void log(String value) {
-        System.out.println(ANSI_BOLD + ANSI_BLUE + value + ANSI_RESET);
+        output.println(value);
     }
 }
@@ -0,0 +1,599 @@
+package fr.jellycat;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fr.jellycat.jit.ClassWriter;
+import fr.jellycat.jit.Code;
+import fr.jellycat.jit.CodeTooLargeException;
+
+// Second tier for hot while loops. Compiles loops made only of numeric code into a JVM class whose variables live
+// in JVM locals, so HotSpot can optimize the loop as a whole. Anything outside that subset leaves the loop to the
+// interpreter.
+final class LoopCompiler {
+    private static class Unsupported extends RuntimeException {
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    // Back edges a loop runs in the interpreter before it gets compiled.
+    static final int THRESHOLD = Integer.getInteger("jeevee.jit.threshold", 1000);
+
+    private static final boolean ENABLED = !"false".equals(System.getProperty("jeevee.jit"));
+
+    private static final String RUNTIME = "fr/jellycat/CompiledLoop";
+    private static final String BODY = "fr/jellycat/CompiledLoop$Body";
+    private static final AtomicInteger classes = new AtomicInteger();
+
+    // Locals of the generated run(double[] state, Object[] constants, Output output, Budget budget), and the fuel
+    // left in the batch the loop took from the budget.
+    private static final int STATE = 1;
+    private static final int CONSTANTS = 2;
+    private static final int OUTPUT = 3;
+    private static final int BUDGET = 4;
+    private static final int FUEL = 5;
+
+    private final Map<Long, Integer> variables = new HashMap<>();
+    private final List<Integer> depths = new ArrayList<>();
+    private final List<Integer> slots = new ArrayList<>();
+    private final List<Boolean> declared = new ArrayList<>();
+    private final List<Integer> locals = new ArrayList<>();
+    private final List<Object> constants = new ArrayList<>();
+    private Code code;
+    private int nextLocal = 6;
+
+    // Returns null when the loop cannot be compiled.
+    static CompiledLoop compile(Stmt loop) {
+        if (!ENABLED)
+            return null;
+
+        try {
+            return new LoopCompiler().compileLoop(loop);
+        } catch (Unsupported | CodeTooLargeException e) {
+            return null;
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    private CompiledLoop compileLoop(Stmt loop) throws ReflectiveOperationException {
+        String name = RUNTIME + "$" + classes.incrementAndGet();
+        ClassWriter writer = new ClassWriter(ClassWriter.ACC_PUBLIC | ClassWriter.ACC_FINAL | ClassWriter.ACC_SUPER,
+                name, "java/lang/Object", BODY);
+
+        Code constructor = writer.method(ClassWriter.ACC_PUBLIC, "<init>", "()V", 1);
+        constructor.aload(0);
+        constructor.invokeSpecial("java/lang/Object", "<init>", "()V");
+        constructor.returnVoid();
+
+        code = writer.method(ClassWriter.ACC_PUBLIC, "run",
+                "([D[Ljava/lang/Object;Lfr/jellycat/Output;Lfr/jellycat/Budget;)V", 5);
+
+        // The variables are only known once the loop is compiled, so loading them comes last and jumps back up.
+        Code.Label entry = new Code.Label();
+        Code.Label start = new Code.Label();
+        Code.Label end = new Code.Label();
+        Code.Label exit = new Code.Label();
+        Code.Label handler = new Code.Label();
+
+        code.jump(entry);
+        code.mark(start);
+        if (loop instanceof Stmt.For) {
+            // The interpreter already ran the counter's initializer.
+            countedLoop((Stmt.For) loop);
+        } else {
+            statement(loop);
+        }
+        code.mark(end);
+        code.jump(exit);
+
+        // A runtime error leaves the frames as they were at the failing operation, like the interpreter would.
+        code.handler(start, end, handler);
+        storeState();
+        code.athrow();
+
+        code.mark(exit);
+        storeState();
+        code.returnVoid();
+
+        code.mark(entry);
+        code.pushInt(0);
+        code.istore(FUEL);
+        for (int i = 0; i < locals.size(); i++) {
+            if (declared.get(i))
+                continue;
+
+            code.aload(STATE);
+            code.pushInt(i);
+            code.daload();
+            code.dstore(locals.get(i));
+        }
+        // Declared variables still need a value on every path for the verifier.
+        for (int i = 0; i < locals.size(); i++) {
+            if (declared.get(i)) {
+                code.pushDouble(0);
+                code.dstore(locals.get(i));
+            }
+        }
+        code.jump(start);
+
+        Class<?> type = define(writer.toByteArray());
+        CompiledLoop.Body body = (CompiledLoop.Body) type.getConstructor().newInstance();
+
+        return new CompiledLoop(body, constants.toArray(), toArray(depths), toArray(slots), toBooleanArray(declared));
+    }
+
+    private void storeState() {
+        for (int i = 0; i < locals.size(); i++) {
+            code.aload(STATE);
+            code.pushInt(i);
+            code.dload(locals.get(i));
+            code.dastore();
+        }
+
+        code.aload(BUDGET);
+        code.iload(FUEL);
+        code.invokeStatic(RUNTIME, "refund", "(Lfr/jellycat/Budget;I)V");
+    }
+
+    // Spends one unit of the batch on the iteration about to run, and takes the next batch from the budget once it
+    // is gone.
+    private void iteration(Token position) {
+        Code.Label paid = new Code.Label();
+
+        code.iinc(FUEL, -1);
+        code.iload(FUEL);
+        code.jump(Code.IFGE, paid);
+        code.aload(BUDGET);
+        constant(position);
+        code.invokeStatic(RUNTIME, "refuel", "(Lfr/jellycat/Budget;Ljava/lang/Object;)I");
+        code.istore(FUEL);
+        code.mark(paid);
+    }
+
+    private void statement(Stmt stmt) {
+        if (stmt instanceof Stmt.Expression) {
+            Expr expression = ((Stmt.Expression) stmt).expression;
+            if (isCondition(expression)) {
+                Code.Label next = new Code.Label();
+                condition(expression, next);
+                code.mark(next);
+            } else {
+                number(expression);
+                code.pop2();
+            }
+        } else if (stmt instanceof Stmt.Print) {
+            print(((Stmt.Print) stmt).expression);
+        } else if (stmt instanceof Stmt.Var) {
+            Stmt.Var var = (Stmt.Var) stmt;
+            if (var.depth == -1 || var.initializer == null)
+                throw new Unsupported();
+
+            number(var.initializer);
+            code.dstore(local(var.depth, var.slot, true));
+        } else if (stmt instanceof Stmt.Block) {
+            Stmt.Block block = (Stmt.Block) stmt;
+            if (block.locals > 0)
+                throw new Unsupported();
+
+            statements(block.statements);
+        } else if (stmt instanceof Stmt.If) {
+            ifStatement((Stmt.If) stmt);
+        } else if (stmt instanceof Stmt.While) {
+            whileStatement((Stmt.While) stmt);
+        } else if (stmt instanceof Stmt.For) {
+            statement(((Stmt.For) stmt).counter);
+            countedLoop((Stmt.For) stmt);
+        } else {
+            throw new Unsupported();
+        }
+    }
+
+    private void statements(List<Stmt> statements) {
+        for (int i = 0; i < statements.size(); i++) {
+            statement(statements.get(i));
+        }
+    }
+
+    private void ifStatement(Stmt.If stmt) {
+        if (stmt.consequentLocals > 0 || stmt.alternateLocals > 0)
+            throw new Unsupported();
+
+        Code.Label alternate = new Code.Label();
+        condition(stmt.condition, alternate);
+        statements(stmt.consequent);
+
+        if (stmt.alternate != null && !stmt.alternate.isEmpty()) {
+            Code.Label end = new Code.Label();
+            code.jump(end);
+            code.mark(alternate);
+            statements(stmt.alternate);
+            code.mark(end);
+        } else {
+            code.mark(alternate);
+        }
+    }
+
+    // Only the loop being compiled may own a frame: its slots are addressed the same way from inside it.
+    private void whileStatement(Stmt.While stmt) {
+        Code.Label head = new Code.Label();
+        Code.Label exit = new Code.Label();
+
+        code.mark(head);
+        condition(stmt.condition, exit);
+        iteration(stmt.keyword);
+        statement(stmt.body);
+        code.jump(head);
+        code.mark(exit);
+    }
+
+    private void countedLoop(Stmt.For stmt) {
+        Code.Label head = new Code.Label();
+        Code.Label exit = new Code.Label();
+        Expr.Variable counter = new Expr.Variable(stmt.counter.name);
+        counter.depth = 0;
+        counter.slot = stmt.counter.slot;
+        int local = local(counter.depth, counter.slot, false);
+
+        code.mark(head);
+        compare(new Expr.Binary(counter, stmt.operator, stmt.limit), exit);
+        iteration(stmt.operator);
+        statement(stmt.body);
+        code.dload(local);
+        code.pushDouble(stmt.step);
+        code.dadd();
+        code.dstore(local);
+        code.jump(head);
+        code.mark(exit);
+    }
+
+    private void print(Expr expr) {
+        code.aload(OUTPUT);
+        if (expr instanceof Expr.Literal && !Numbers.isNumber(((Expr.Literal) expr).value)) {
+            constant(((Expr.Literal) expr).value);
+            code.invokeStatic(RUNTIME, "print", "(Lfr/jellycat/Output;Ljava/lang/Object;)V");
+        } else if (isCondition(expr)) {
+            booleanValue(expr);
+            code.invokeStatic(RUNTIME, "print", "(Lfr/jellycat/Output;Z)V");
+        } else {
+            number(expr);
+            code.invokeStatic(RUNTIME, "print", "(Lfr/jellycat/Output;D)V");
+        }
+    }
+
+    // Expressions whose value is a boolean rather than a number.
+    private static boolean isCondition(Expr expr) {
+        if (expr instanceof Expr.Grouping) {
+            return isCondition(((Expr.Grouping) expr).expression);
+        } else if (expr instanceof Expr.Invariant) {
+            return isCondition(((Expr.Invariant) expr).expression);
+        } else if (expr instanceof Expr.Literal) {
+            return ((Expr.Literal) expr).value instanceof Boolean;
+        } else if (expr instanceof Expr.Unary) {
+            return ((Expr.Unary) expr).operator.type == TokenType.BANG;
+        } else if (expr instanceof Expr.Binary) {
+            return comparison(((Expr.Binary) expr).operator.type);
+        }
+
+        return false;
+    }
+
+    private static boolean comparison(TokenType operator) {
+        switch (operator) {
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+            case EQUAL_EQUAL:
+            case BANG_EQUAL:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void booleanValue(Expr expr) {
+        Code.Label falsy = new Code.Label();
+        Code.Label end = new Code.Label();
+
+        condition(expr, falsy);
+        code.pushInt(1);
+        code.jump(end);
+        code.mark(falsy);
+        code.pushInt(0);
+        code.mark(end);
+    }
+
+    // Falls through when the expression is truthy and jumps to 'falsy' otherwise.
+    private void condition(Expr expr, Code.Label falsy) {
+        if (expr instanceof Expr.Grouping) {
+            condition(((Expr.Grouping) expr).expression, falsy);
+        } else if (expr instanceof Expr.Invariant) {
+            // HotSpot hoists what the interpreter caches.
+            condition(((Expr.Invariant) expr).expression, falsy);
+        } else if (expr instanceof Expr.Literal) {
+            constantCondition(Interpreter.isTruthy(((Expr.Literal) expr).value), falsy);
+        } else if (expr instanceof Expr.Logical) {
+            Expr.Logical logical = (Expr.Logical) expr;
+            if (logical.operator.type == TokenType.AND) {
+                condition(logical.left, falsy);
+                condition(logical.right, falsy);
+            } else {
+                Code.Label right = new Code.Label();
+                Code.Label truthy = new Code.Label();
+                condition(logical.left, right);
+                code.jump(truthy);
+                code.mark(right);
+                condition(logical.right, falsy);
+                code.mark(truthy);
+            }
+        } else if (expr instanceof Expr.Unary && ((Expr.Unary) expr).operator.type == TokenType.BANG) {
+            Code.Label truthy = new Code.Label();
+            condition(((Expr.Unary) expr).right, truthy);
+            code.jump(falsy);
+            code.mark(truthy);
+        } else if (expr instanceof Expr.Binary && comparison(((Expr.Binary) expr).operator.type)) {
+            compare((Expr.Binary) expr, falsy);
+        } else {
+            // Every number is truthy.
+            number(expr);
+            code.pop2();
+            constantCondition(true, falsy);
+        }
+    }
+
+    // Still a real branch, so 'falsy' always learns the stack height from here and no code becomes unreachable.
+    private void constantCondition(boolean truthy, Code.Label falsy) {
+        code.pushInt(truthy ? 1 : 0);
+        code.jump(Code.IFEQ, falsy);
+    }
+
+    // NaN compares false with everything, hence dcmpg for < and <=, and dcmpl for > and >=.
+    private void compare(Expr.Binary expr, Code.Label falsy) {
+        TokenType operator = expr.operator.type;
+
+        if (operator == TokenType.EQUAL_EQUAL || operator == TokenType.BANG_EQUAL) {
+            // Same rule as Double.equals, which the interpreter uses.
+            number(expr.left);
+            code.invokeStatic("java/lang/Double", "doubleToLongBits", "(D)J");
+            number(expr.right);
+            code.invokeStatic("java/lang/Double", "doubleToLongBits", "(D)J");
+            code.lcmp();
+            code.jump(operator == TokenType.EQUAL_EQUAL ? Code.IFNE : Code.IFEQ, falsy);
+            return;
+        }
+
+        number(expr.left);
+        number(expr.right);
+
+        switch (operator) {
+            case LESS:
+                code.dcmpg();
+                code.jump(Code.IFGE, falsy);
+                break;
+            case LESS_EQUAL:
+                code.dcmpg();
+                code.jump(Code.IFGT, falsy);
+                break;
+            case GREATER:
+                code.dcmpl();
+                code.jump(Code.IFLE, falsy);
+                break;
+            default:
+                code.dcmpl();
+                code.jump(Code.IFLT, falsy);
+                break;
+        }
+    }
+
+    // Leaves the double value of a numeric expression on the stack.
+    private void number(Expr expr) {
+        if (expr instanceof Expr.Literal) {
+            Object value = ((Expr.Literal) expr).value;
+            if (!Numbers.isNumber(value))
+                throw new Unsupported();
+
+            code.pushDouble(Numbers.toDouble(value));
+        } else if (expr instanceof Expr.Variable) {
+            Expr.Variable variable = (Expr.Variable) expr;
+            code.dload(local(variable.depth, variable.slot, false));
+        } else if (expr instanceof Expr.Grouping) {
+            number(((Expr.Grouping) expr).expression);
+        } else if (expr instanceof Expr.Invariant) {
+            number(((Expr.Invariant) expr).expression);
+        } else if (expr instanceof Expr.Assign) {
+            Expr.Assign assign = (Expr.Assign) expr;
+            number(assign.value);
+            code.dup2();
+            code.dstore(local(assign.depth, assign.slot, false));
+        } else if (expr instanceof Expr.Binary) {
+            arithmetic((Expr.Binary) expr);
+        } else if (expr instanceof Expr.Unary) {
+            unary((Expr.Unary) expr);
+        } else if (expr instanceof Expr.PostFix) {
+            postFix((Expr.PostFix) expr);
+        } else if (expr instanceof Expr.Conditional) {
+            conditional((Expr.Conditional) expr);
+        } else {
+            throw new Unsupported();
+        }
+    }
+
+    private void arithmetic(Expr.Binary expr) {
+        number(expr.left);
+        number(expr.right);
+
+        switch (expr.operator.type) {
+            case PLUS:
+                code.dadd();
+                break;
+            case MINUS:
+                code.dsub();
+                break;
+            case STAR:
+                code.dmul();
+                break;
+            case SLASH:
+                divide(expr.operator);
+                break;
+            case PERCENT:
+                code.drem();
+                break;
+            default:
+                throw new Unsupported();
+        }
+    }
+
+    private void divide(Token operator) {
+        Code.Label nonZero = new Code.Label();
+
+        code.dup2();
+        code.pushDouble(0);
+        code.dcmpl();
+        code.jump(Code.IFNE, nonZero);
+        constant(operator);
+        code.invokeStatic(RUNTIME, "divisionByZero", "(Ljava/lang/Object;)Lfr/jellycat/RuntimeError;");
+        code.athrow();
+        code.mark(nonZero);
+        code.ddiv();
+    }
+
+    private void unary(Expr.Unary expr) {
+        number(expr.right);
+
+        switch (expr.operator.type) {
+            case MINUS:
+                code.dneg();
+                break;
+            case PLUS_PLUS:
+                code.pushDouble(1);
+                code.dadd();
+                break;
+            case MINUS_MINUS:
+                code.pushDouble(1);
+                code.dsub();
+                break;
+            default:
+                throw new Unsupported();
+        }
+    }
+
+    private void postFix(Expr.PostFix expr) {
+        if (!(expr.left instanceof Expr.Variable))
+            throw new Unsupported();
+
+        Expr.Variable variable = (Expr.Variable) expr.left;
+        int local = local(variable.depth, variable.slot, false);
+
+        code.dload(local);
+        code.pushDouble(1);
+        if (expr.operator.type == TokenType.MINUS_MINUS) {
+            code.dsub();
+        } else {
+            code.dadd();
+        }
+        code.dup2();
+        code.dstore(local);
+    }
+
+    // Both branches are evaluated, in order, before one is picked.
+    private void conditional(Expr.Conditional expr) {
+        int test = nextLocal++;
+        int consequent = allocateDouble();
+        int alternate = allocateDouble();
+        Code.Label pickAlternate = new Code.Label();
+        Code.Label end = new Code.Label();
+
+        booleanValue(expr.test);
+        code.istore(test);
+        number(expr.consequent);
+        code.dstore(consequent);
+        number(expr.alternate);
+        code.dstore(alternate);
+
+        code.iload(test);
+        code.jump(Code.IFEQ, pickAlternate);
+        code.dload(consequent);
+        code.jump(end);
+        code.mark(pickAlternate);
+        code.dload(alternate);
+        code.mark(end);
+    }
+
+    private void constant(Object value) {
+        code.aload(CONSTANTS);
+        code.pushInt(constants.size());
+        code.aaload();
+        constants.add(value);
+    }
+
+    // The JVM local holding a variable, allocated the first time the loop mentions it.
+    private int local(int depth, int slot, boolean declaration) {
+        // Variables closures capture live in Cells.
+        if (depth < -1)
+            throw new Unsupported();
+
+        long key = ((long) depth << 32) | (slot & 0xffffffffL);
+        Integer index = variables.get(key);
+
+        if (index == null) {
+            index = locals.size();
+            variables.put(key, index);
+            depths.add(depth);
+            slots.add(slot);
+            declared.add(declaration);
+            locals.add(allocateDouble());
+        } else if (declaration) {
+            declared.set(index, true);
+        }
+
+        return locals.get(index);
+    }
+
+    private int allocateDouble() {
+        int local = nextLocal;
+        nextLocal += 2;
+        return local;
+    }
+
+    // Hidden classes (JDK 15+) can be unloaded with the loop; older JDKs get a plain class in this package.
+    private static Class<?> define(byte[] bytes) throws ReflectiveOperationException {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+        try {
+            Class<?> option = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            Method defineHidden = MethodHandles.Lookup.class.getMethod("defineHiddenClass", byte[].class,
+                    boolean.class, Array.newInstance(option, 0).getClass());
+            Object hidden = defineHidden.invoke(lookup, bytes, true, Array.newInstance(option, 0));
+            return ((MethodHandles.Lookup) hidden).lookupClass();
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            Method defineClass = MethodHandles.Lookup.class.getMethod("defineClass", byte[].class);
+            return (Class<?>) defineClass.invoke(lookup, (Object) bytes);
+        }
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+
+        return array;
+    }
+
+    private static boolean[] toBooleanArray(List<Boolean> list) {
+        boolean[] array = new boolean[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+
+        return array;
+    }
+}
@@ -0,0 +1,289 @@
+package fr.jellycat;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Turns the Block(let i = start, While(i < limit, Block(body, i++))) that Parser.forStatement desugars counted
+// loops into back into a Stmt.For, and marks the expressions of its body that no iteration can change as
+// invariants, computed once per run of the loop.
+final class LoopOptimizer {
+    private final Set<String> modified = new HashSet<>();
+    private final List<Expr.Invariant> invariants = new ArrayList<>();
+    // Whether the loop calls a function, which may assign any variable it can see.
+    private boolean calls = false;
+
+    private LoopOptimizer() {
+    }
+
+    // Returns null when the block is not a counted loop.
+    static Stmt.For counted(Stmt.Block block) {
+        if (block.statements.size() != 2)
+            return null;
+        if (!(block.statements.get(0) instanceof Stmt.Var) || !(block.statements.get(1) instanceof Stmt.While))
+            return null;
+
+        Stmt.Var counter = (Stmt.Var) block.statements.get(0);
+        Stmt.While loop = (Stmt.While) block.statements.get(1);
+        if (counter.initializer == null || !(loop.condition instanceof Expr.Binary))
+            return null;
+
+        Expr.Binary condition = (Expr.Binary) loop.condition;
+        if (!isCounter(condition.left, counter) || !isBound(condition.operator.type))
+            return null;
+
+        if (!(loop.body instanceof Stmt.Block))
+            return null;
+
+        List<Stmt> statements = ((Stmt.Block) loop.body).statements;
+        if (statements.isEmpty() || !(statements.get(statements.size() - 1) instanceof Stmt.Expression))
+            return null;
+
+        Double step = step(((Stmt.Expression) statements.get(statements.size() - 1)).expression, counter);
+        if (step == null || statements.size() > 2)
+            return null;
+
+        Stmt body = statements.size() == 2 ? statements.get(0) : new Stmt.Block(new ArrayList<Stmt>());
+
+        // The counter only changes through the increment, and the limit has to be the same on every check.
+        LoopOptimizer optimizer = new LoopOptimizer();
+        if (!optimizer.collect(body) || !optimizer.collect(condition.right))
+            return null;
+        if (!optimizer.modified.add(counter.name.lexeme) || !optimizer.isInvariant(condition.right))
+            return null;
+
+        body = optimizer.hoist(body);
+
+        return new Stmt.For(counter, condition.operator, condition.right, step, body, optimizer.invariants);
+    }
+
+    private static boolean isCounter(Expr expr, Stmt.Var counter) {
+        return expr instanceof Expr.Variable && ((Expr.Variable) expr).name.lexeme.equals(counter.name.lexeme);
+    }
+
+    private static boolean isBound(TokenType operator) {
+        return operator == TokenType.LESS || operator == TokenType.LESS_EQUAL || operator == TokenType.GREATER
+                || operator == TokenType.GREATER_EQUAL;
+    }
+
+    // i++, i--, i = i + k, i = k + i and i = i - k, with k a number literal.
+    private static Double step(Expr increment, Stmt.Var counter) {
+        if (increment instanceof Expr.PostFix) {
+            Expr.PostFix postFix = (Expr.PostFix) increment;
+            if (!isCounter(postFix.left, counter))
+                return null;
+
+            return postFix.operator.type == TokenType.MINUS_MINUS ? -1.0 : 1.0;
+        }
+
+        if (!(increment instanceof Expr.Assign) || !((Expr.Assign) increment).name.lexeme.equals(counter.name.lexeme))
+            return null;
+
+        Expr value = ((Expr.Assign) increment).value;
+        if (!(value instanceof Expr.Binary))
+            return null;
+
+        Expr.Binary binary = (Expr.Binary) value;
+        TokenType operator = binary.operator.type;
+
+        if (isCounter(binary.left, counter) && binary.right instanceof Expr.Literal) {
+            Object k = ((Expr.Literal) binary.right).value;
+            if (!Numbers.isNumber(k))
+                return null;
+            if (operator == TokenType.PLUS)
+                return Numbers.toDouble(k);
+            if (operator == TokenType.MINUS)
+                return -Numbers.toDouble(k);
+        } else if (operator == TokenType.PLUS && isCounter(binary.right, counter)
+                && binary.left instanceof Expr.Literal && Numbers.isNumber(((Expr.Literal) binary.left).value)) {
+            return Numbers.toDouble(((Expr.Literal) binary.left).value);
+        }
+
+        return null;
+    }
+
+    // Records every name the loop assigns or declares. Returns false for code it cannot see through, like a function
+    // defined in the loop, which could capture the counter.
+    private boolean collect(Stmt stmt) {
+        if (stmt instanceof Stmt.Expression) {
+            return collect(((Stmt.Expression) stmt).expression);
+        } else if (stmt instanceof Stmt.Print) {
+            return collect(((Stmt.Print) stmt).expression);
+        } else if (stmt instanceof Stmt.Var) {
+            Stmt.Var var = (Stmt.Var) stmt;
+            modified.add(var.name.lexeme);
+            return var.initializer == null || collect(var.initializer);
+        } else if (stmt instanceof Stmt.Block) {
+            return collect(((Stmt.Block) stmt).statements);
+        } else if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If) stmt;
+            return collect(ifStmt.condition) && collect(ifStmt.consequent)
+                    && (ifStmt.alternate == null || collect(ifStmt.alternate));
+        } else if (stmt instanceof Stmt.While) {
+            Stmt.While loop = (Stmt.While) stmt;
+            return collect(loop.condition) && collect(loop.body);
+        } else if (stmt instanceof Stmt.For) {
+            Stmt.For loop = (Stmt.For) stmt;
+            return collect(loop.counter) && collect(loop.limit) && collect(loop.body);
+        } else if (stmt instanceof Stmt.Return) {
+            Expr value = ((Stmt.Return) stmt).value;
+            return value == null || collect(value);
+        }
+
+        return false;
+    }
+
+    private boolean collect(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (!collect(statement))
+                return false;
+        }
+
+        return true;
+    }
+
+    private boolean collect(Expr expr) {
+        if (expr instanceof Expr.Literal || expr instanceof Expr.Variable) {
+            return true;
+        } else if (expr instanceof Expr.Assign) {
+            modified.add(((Expr.Assign) expr).name.lexeme);
+            return collect(((Expr.Assign) expr).value);
+        } else if (expr instanceof Expr.PostFix) {
+            Expr left = ((Expr.PostFix) expr).left;
+            if (left instanceof Expr.Variable) {
+                modified.add(((Expr.Variable) left).name.lexeme);
+            }
+            return collect(left);
+        } else if (expr instanceof Expr.Grouping) {
+            return collect(((Expr.Grouping) expr).expression);
+        } else if (expr instanceof Expr.Invariant) {
+            return collect(((Expr.Invariant) expr).expression);
+        } else if (expr instanceof Expr.Unary) {
+            return collect(((Expr.Unary) expr).right);
+        } else if (expr instanceof Expr.Binary) {
+            return collect(((Expr.Binary) expr).left) && collect(((Expr.Binary) expr).right);
+        } else if (expr instanceof Expr.Logical) {
+            return collect(((Expr.Logical) expr).left) && collect(((Expr.Logical) expr).right);
+        } else if (expr instanceof Expr.Conditional) {
+            Expr.Conditional conditional = (Expr.Conditional) expr;
+            return collect(conditional.test) && collect(conditional.consequent) && collect(conditional.alternate);
+        } else if (expr instanceof Expr.Call) {
+            calls = true;
+            Expr.Call call = (Expr.Call) expr;
+            for (Expr argument : call.arguments) {
+                if (!collect(argument))
+                    return false;
+            }
+            return collect(call.callee);
+        }
+
+        return false;
+    }
+
+    // Same value every time it is evaluated during the loop, and nothing else observable happens: it reads no
+    // modified variable and writes none. It may still raise an error, which then happens on every evaluation.
+    private boolean isInvariant(Expr expr) {
+        if (expr instanceof Expr.Literal) {
+            return true;
+        } else if (expr instanceof Expr.Variable) {
+            return !calls && !modified.contains(((Expr.Variable) expr).name.lexeme);
+        } else if (expr instanceof Expr.Grouping) {
+            return isInvariant(((Expr.Grouping) expr).expression);
+        } else if (expr instanceof Expr.Invariant) {
+            return isInvariant(((Expr.Invariant) expr).expression);
+        } else if (expr instanceof Expr.Unary) {
+            // Prefix ++ and -- do not store their result.
+            return isInvariant(((Expr.Unary) expr).right);
+        } else if (expr instanceof Expr.Binary) {
+            return isInvariant(((Expr.Binary) expr).left) && isInvariant(((Expr.Binary) expr).right);
+        } else if (expr instanceof Expr.Logical) {
+            return isInvariant(((Expr.Logical) expr).left) && isInvariant(((Expr.Logical) expr).right);
+        } else if (expr instanceof Expr.Conditional) {
+            Expr.Conditional conditional = (Expr.Conditional) expr;
+            return isInvariant(conditional.test) && isInvariant(conditional.consequent)
+                    && isInvariant(conditional.alternate);
+        }
+
+        return false;
+    }
+
+    private Stmt hoist(Stmt stmt) {
+        if (stmt instanceof Stmt.Expression) {
+            return new Stmt.Expression(hoist(((Stmt.Expression) stmt).expression));
+        } else if (stmt instanceof Stmt.Print) {
+            return new Stmt.Print(hoist(((Stmt.Print) stmt).expression));
+        } else if (stmt instanceof Stmt.Var) {
+            Stmt.Var var = (Stmt.Var) stmt;
+            return new Stmt.Var(var.name, var.initializer == null ? null : hoist(var.initializer));
+        } else if (stmt instanceof Stmt.Block) {
+            return new Stmt.Block(hoist(((Stmt.Block) stmt).statements));
+        } else if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If) stmt;
+            return new Stmt.If(hoist(ifStmt.condition), hoist(ifStmt.consequent),
+                    ifStmt.alternate == null ? null : hoist(ifStmt.alternate));
+        } else if (stmt instanceof Stmt.While) {
+            Stmt.While loop = (Stmt.While) stmt;
+            return new Stmt.While(loop.keyword, hoist(loop.condition), hoist(loop.body));
+        } else if (stmt instanceof Stmt.Return) {
+            Stmt.Return returnStmt = (Stmt.Return) stmt;
+            return new Stmt.Return(returnStmt.keyword, returnStmt.value == null ? null : hoist(returnStmt.value));
+        }
+
+        // A nested counted loop already hoisted what it could.
+        return stmt;
+    }
+
+    private List<Stmt> hoist(List<Stmt> statements) {
+        List<Stmt> hoisted = new ArrayList<>(statements.size());
+        for (Stmt statement : statements) {
+            hoisted.add(hoist(statement));
+        }
+
+        return hoisted;
+    }
+
+    private Expr hoist(Expr expr) {
+        if (isInvariant(expr) && isWorthCaching(expr)) {
+            Expr.Invariant invariant = new Expr.Invariant(expr);
+            invariants.add(invariant);
+            return invariant;
+        }
+
+        if (expr instanceof Expr.Assign) {
+            return new Expr.Assign(((Expr.Assign) expr).name, hoist(((Expr.Assign) expr).value));
+        } else if (expr instanceof Expr.Grouping) {
+            return new Expr.Grouping(hoist(((Expr.Grouping) expr).expression));
+        } else if (expr instanceof Expr.Unary) {
+            return new Expr.Unary(((Expr.Unary) expr).operator, hoist(((Expr.Unary) expr).right));
+        } else if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            return new Expr.Binary(hoist(binary.left), binary.operator, hoist(binary.right));
+        } else if (expr instanceof Expr.Logical) {
+            Expr.Logical logical = (Expr.Logical) expr;
+            return new Expr.Logical(hoist(logical.left), logical.operator, hoist(logical.right));
+        } else if (expr instanceof Expr.Conditional) {
+            Expr.Conditional conditional = (Expr.Conditional) expr;
+            return new Expr.Conditional(hoist(conditional.test), hoist(conditional.consequent),
+                    hoist(conditional.alternate));
+        } else if (expr instanceof Expr.Call) {
+            Expr.Call call = (Expr.Call) expr;
+            List<Expr> arguments = new ArrayList<>(call.arguments.size());
+            for (Expr argument : call.arguments) {
+                arguments.add(hoist(argument));
+            }
+            return new Expr.Call(hoist(call.callee), call.paren, arguments);
+        }
+
+        return expr;
+    }
+
+    // Reading a variable or a literal costs as much as reading the cached value.
+    private static boolean isWorthCaching(Expr expr) {
+        if (expr instanceof Expr.Grouping)
+            return isWorthCaching(((Expr.Grouping) expr).expression);
+
+        return expr instanceof Expr.Unary || expr instanceof Expr.Binary || expr instanceof Expr.Logical
+                || expr instanceof Expr.Conditional;
+    }
+}
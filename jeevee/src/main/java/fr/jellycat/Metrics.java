@@ -0,0 +1,168 @@
+package fr.jellycat;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Totals of what the interpreters in this JVM did, readable as the platform MBean fr.jellycat:type=Metrics and
+// printed by --stats. Each interpreter counts its frequent events in plain fields of its own Counters and adds them
+// here every FLUSH_EVERY statements and at the end of each run; rare events go straight to the striped adders.
+final class Metrics implements MetricsMXBean {
+    static final int DEPTHS = 8;
+    static final int FLUSH_EVERY = 4096;
+
+    // Owned by one interpreter, so one thread.
+    static final class Counters {
+        long statements = 0;
+        long globalLookups = 0;
+        final long[] localLookups = new long[DEPTHS];
+        long frames = 0;
+        long boxed = 0;
+
+        void lookup(int depth) {
+            localLookups[depth < DEPTHS ? depth : DEPTHS - 1]++;
+        }
+    }
+
+    static final LongAdder CONCATENATIONS = new LongAdder();
+    static final LongAdder RUNTIME_ERRORS = new LongAdder();
+
+    private static final LongAdder STATEMENTS = new LongAdder();
+    private static final LongAdder GLOBAL_LOOKUPS = new LongAdder();
+    private static final LongAdder[] LOCAL_LOOKUPS = new LongAdder[DEPTHS];
+    private static final LongAdder FRAMES = new LongAdder();
+    private static final LongAdder BOXED = new LongAdder();
+    private static final Map<String, Long> PARSE_NANOS = new ConcurrentHashMap<>();
+    private static final Map<String, Long> CACHE_LOAD_NANOS = new ConcurrentHashMap<>();
+
+    static {
+        for (int i = 0; i < DEPTHS; i++) {
+            LOCAL_LOOKUPS[i] = new LongAdder();
+        }
+    }
+
+    private static final Metrics INSTANCE = new Metrics();
+    private static boolean registered = false;
+
+    private Metrics() {
+    }
+
+    static Metrics instance() {
+        return INSTANCE;
+    }
+
+    static void flush(Counters counters) {
+        STATEMENTS.add(counters.statements);
+        GLOBAL_LOOKUPS.add(counters.globalLookups);
+        for (int i = 0; i < DEPTHS; i++) {
+            LOCAL_LOOKUPS[i].add(counters.localLookups[i]);
+            counters.localLookups[i] = 0;
+        }
+        FRAMES.add(counters.frames);
+        BOXED.add(counters.boxed);
+
+        counters.statements = 0;
+        counters.globalLookups = 0;
+        counters.frames = 0;
+        counters.boxed = 0;
+    }
+
+    static void parsed(String script, long nanos) {
+        PARSE_NANOS.put(script, nanos);
+    }
+
+    static void loadedFromCache(String script, long nanos) {
+        CACHE_LOAD_NANOS.put(script, nanos);
+    }
+
+    // Starting the platform MBean server takes long enough to matter for short scripts, so only when JMX is wanted:
+    // with -Djeevee.jmx=true, or when the JVM was started with remote JMX.
+    static synchronized void registerIfEnabled() {
+        if (registered)
+            return;
+        if (!Boolean.getBoolean("jeevee.jmx") && System.getProperty("com.sun.management.jmxremote.port") == null)
+            return;
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE,
+                    new ObjectName("fr.jellycat:type=Metrics"));
+            registered = true;
+        } catch (JMException error) {
+            System.err.println("Could not register the metrics MBean: " + error.getMessage());
+        }
+    }
+
+    static void print(PrintStream out) {
+        out.println("Statements executed:   " + INSTANCE.getStatementsExecuted());
+        out.println("Global lookups:        " + INSTANCE.getGlobalLookups());
+        out.println("Local lookups by depth: " + Arrays.toString(INSTANCE.getLocalLookupsByDepth()));
+        out.println("Frames allocated:      " + INSTANCE.getFramesAllocated());
+        out.println("Boxed numbers:         " + INSTANCE.getBoxedNumbers());
+        out.println("String concatenations: " + INSTANCE.getStringConcatenations());
+        out.println("Runtime errors:        " + INSTANCE.getRuntimeErrors());
+
+        for (Map.Entry<String, Long> script : INSTANCE.getParseNanos().entrySet()) {
+            out.printf("Scan and parse:        %.3f ms  %s%n", script.getValue() / 1e6, script.getKey());
+        }
+        for (Map.Entry<String, Long> script : INSTANCE.getCacheLoadNanos().entrySet()) {
+            out.printf("Load from cache:       %.3f ms  %s%n", script.getValue() / 1e6, script.getKey());
+        }
+    }
+
+    @Override
+    public long getStatementsExecuted() {
+        return STATEMENTS.sum();
+    }
+
+    @Override
+    public long getGlobalLookups() {
+        return GLOBAL_LOOKUPS.sum();
+    }
+
+    @Override
+    public long[] getLocalLookupsByDepth() {
+        long[] lookups = new long[DEPTHS];
+        for (int i = 0; i < DEPTHS; i++) {
+            lookups[i] = LOCAL_LOOKUPS[i].sum();
+        }
+
+        return lookups;
+    }
+
+    @Override
+    public long getFramesAllocated() {
+        return FRAMES.sum();
+    }
+
+    @Override
+    public long getBoxedNumbers() {
+        return BOXED.sum();
+    }
+
+    @Override
+    public long getStringConcatenations() {
+        return CONCATENATIONS.sum();
+    }
+
+    @Override
+    public long getRuntimeErrors() {
+        return RUNTIME_ERRORS.sum();
+    }
+
+    @Override
+    public Map<String, Long> getParseNanos() {
+        return new TreeMap<>(PARSE_NANOS);
+    }
+
+    @Override
+    public Map<String, Long> getCacheLoadNanos() {
+        return new TreeMap<>(CACHE_LOAD_NANOS);
+    }
+}
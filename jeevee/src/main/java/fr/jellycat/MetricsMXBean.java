@@ -0,0 +1,28 @@
+package fr.jellycat;
+
+import java.util.Map;
+
+// What JMX clients see of Metrics. JMX only reads public interfaces.
+public interface MetricsMXBean {
+    long getStatementsExecuted();
+
+    long getGlobalLookups();
+
+    // Reads and writes of local variables by how many frames up the variable lives, the last entry counting
+    // everything at that depth or deeper.
+    long[] getLocalLookupsByDepth();
+
+    long getFramesAllocated();
+
+    long getBoxedNumbers();
+
+    long getStringConcatenations();
+
+    long getRuntimeErrors();
+
+    // Most recent time to scan and parse each script, which the parser does in one pass, in nanoseconds.
+    Map<String, Long> getParseNanos();
+
+    // Most recent time to load each script from ProgramCache instead, in nanoseconds.
+    Map<String, Long> getCacheLoadNanos();
+}
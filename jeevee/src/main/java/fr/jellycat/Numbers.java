@@ -0,0 +1,67 @@
+package fr.jellycat;
+
+// A number is boxed as a Long when it is an integer a double holds exactly, and as a Double otherwise. Both stand
+// for the same double value: operations give what they would on doubles, so a Long result is only made when the
+// double result is integral, and -0.0, which has no Long, stays a Double.
+//
+// Public only for the VM, which prints numbers the same way.
+public final class Numbers {
+    // Past 2^53 doubles skip integers, so larger results go back to Double and round the way doubles do.
+    static final long MAX_EXACT = 1L << 53;
+
+    private Numbers() {
+    }
+
+    static Object box(double value) {
+        if (isIntegral(value))
+            return (long) value;
+
+        return value;
+    }
+
+    static boolean isNumber(Object value) {
+        return value instanceof Double || value instanceof Long;
+    }
+
+    static double toDouble(Object value) {
+        return value instanceof Long ? (long) value : (double) value;
+    }
+
+    // The doubles box() makes a Long of.
+    static boolean isIntegral(double value) {
+        return value == Math.rint(value) && value >= -MAX_EXACT && value <= MAX_EXACT
+                && (value != 0 || Double.doubleToRawLongBits(value) == 0);
+    }
+
+    // Double.equals, which the interpreter always used: NaN equals itself, 0.0 and -0.0 differ.
+    static boolean equal(Object a, Object b) {
+        return Double.doubleToLongBits(toDouble(a)) == Double.doubleToLongBits(toDouble(b));
+    }
+
+    // Made the first time each is printed.
+    private static final String[] SMALL = new String[1024];
+
+    // Numbers switch to scientific notation from 10^7 on; below, an integer reads the same without it.
+    static String toString(long value) {
+        if (value >= 0 && value < SMALL.length) {
+            String text = SMALL[(int) value];
+            if (text == null) {
+                text = Long.toString(value);
+                SMALL[(int) value] = text;
+            }
+            return text;
+        }
+
+        if (value > -10_000_000 && value < 10_000_000)
+            return Long.toString(value);
+
+        return DoubleFormatter.toString(value);
+    }
+
+    public static String toString(double value) {
+        if (value > -10_000_000 && value < 10_000_000 && isIntegral(value))
+            return toString((long) value);
+
+        return DoubleFormatter.toString(value);
+    }
+}
@@ -0,0 +1,295 @@
+package fr.jellycat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Rewrites the parsed trees before they are resolved: folds operations on literals and drops branches and loops
+// that can never run. Anything that would fail at runtime, or whose evaluation could be observed, is left alone so
+// errors still happen where they used to.
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    private static final Object UNFOLDABLE = new Object();
+
+    // Level 1 folds constants, level 2 also turns counted for loops into Stmt.For.
+    private final int level;
+
+    Optimizer(int level) {
+        this.level = level;
+    }
+
+    List<Stmt> optimize(List<Stmt> statements) {
+        List<Stmt> optimized = new ArrayList<>(statements.size());
+
+        for (Stmt statement : statements) {
+            Stmt result = optimize(statement);
+
+            // Null means the statement does nothing.
+            if (result != null) {
+                optimized.add(result);
+            }
+        }
+
+        return optimized;
+    }
+
+    Expr optimize(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private Stmt optimize(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        Stmt.Block block = new Stmt.Block(optimize(stmt.statements));
+
+        if (level >= 2) {
+            Stmt.For loop = LoopOptimizer.counted(block);
+            if (loop != null)
+                return loop;
+        }
+
+        return block;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = optimize(stmt.expression);
+
+        if (expression instanceof Expr.Literal)
+            return null;
+
+        return new Stmt.Expression(expression);
+    }
+
+    // Only this pass builds counted loops, from already optimized blocks.
+    @Override
+    public Stmt visitForStmt(Stmt.For stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = optimize(stmt.condition);
+        List<Stmt> consequent = optimize(stmt.consequent);
+        List<Stmt> alternate = stmt.alternate == null ? null : optimize(stmt.alternate);
+
+        if (!(condition instanceof Expr.Literal))
+            return new Stmt.If(condition, consequent, alternate);
+
+        // The branch that runs keeps a scope of its own.
+        if (Interpreter.isTruthy(((Expr.Literal) condition).value))
+            return new Stmt.Block(consequent);
+        if (alternate == null || alternate.isEmpty())
+            return null;
+
+        return new Stmt.Block(alternate);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        return new Stmt.Print(optimize(stmt.expression));
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        Expr initializer = stmt.initializer == null ? null : optimize(stmt.initializer);
+        return new Stmt.Var(stmt.name, initializer);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        return new Stmt.Function(stmt.name, (Expr.Lambda) optimize(stmt.function));
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        return new Stmt.Return(stmt.keyword, stmt.value == null ? null : optimize(stmt.value));
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = optimize(stmt.condition);
+
+        if (condition instanceof Expr.Literal && !Interpreter.isTruthy(((Expr.Literal) condition).value))
+            return null;
+
+        Stmt body = optimize(stmt.body);
+        if (body == null) {
+            body = new Stmt.Block(new ArrayList<Stmt>());
+        }
+
+        return new Stmt.While(stmt.keyword, condition, body);
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        return new Expr.Assign(expr.name, optimize(expr.value));
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+        for (Expr argument : expr.arguments) {
+            arguments.add(optimize(argument));
+        }
+
+        return new Expr.Call(optimize(expr.callee), expr.paren, arguments);
+    }
+
+    @Override
+    public Expr visitLambdaExpr(Expr.Lambda expr) {
+        return new Expr.Lambda(expr.name, expr.params, optimize(expr.body));
+    }
+
+    // Both branches of a conditional are always evaluated, so only a literal branch can be dropped.
+    @Override
+    public Expr visitConditionalExpr(Expr.Conditional expr) {
+        Expr test = optimize(expr.test);
+        Expr consequent = optimize(expr.consequent);
+        Expr alternate = optimize(expr.alternate);
+
+        if (test instanceof Expr.Literal) {
+            boolean truthy = Interpreter.isTruthy(((Expr.Literal) test).value);
+
+            if (truthy && alternate instanceof Expr.Literal)
+                return consequent;
+            if (!truthy && consequent instanceof Expr.Literal)
+                return alternate;
+        }
+
+        return new Expr.Conditional(test, consequent, alternate);
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+
+        if (!(left instanceof Expr.Literal))
+            return new Expr.Logical(left, expr.operator, right);
+
+        boolean truthy = Interpreter.isTruthy(((Expr.Literal) left).value);
+        if (expr.operator.type == TokenType.OR) {
+            return truthy ? left : right;
+        }
+
+        return truthy ? right : left;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+
+        if (left instanceof Expr.Literal && right instanceof Expr.Literal) {
+            Object result = fold(expr.operator.type, ((Expr.Literal) left).value, ((Expr.Literal) right).value);
+            if (result != UNFOLDABLE)
+                return new Expr.Literal(result);
+        }
+
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        Expr expression = optimize(expr.expression);
+
+        if (expression instanceof Expr.Literal)
+            return expression;
+
+        return new Expr.Grouping(expression);
+    }
+
+    @Override
+    public Expr visitInvariantExpr(Expr.Invariant expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = optimize(expr.right);
+
+        if (right instanceof Expr.Literal) {
+            Object value = ((Expr.Literal) right).value;
+
+            switch (expr.operator.type) {
+                case BANG:
+                    return new Expr.Literal(!Interpreter.isTruthy(value));
+                case MINUS:
+                    if (Numbers.isNumber(value))
+                        return new Expr.Literal(Numbers.box(-Numbers.toDouble(value)));
+                    break;
+                case PLUS_PLUS:
+                    if (Numbers.isNumber(value))
+                        return new Expr.Literal(Numbers.box(Numbers.toDouble(value) + 1));
+                    break;
+                case MINUS_MINUS:
+                    if (Numbers.isNumber(value))
+                        return new Expr.Literal(Numbers.box(Numbers.toDouble(value) - 1));
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitPostFixExpr(Expr.PostFix expr) {
+        return new Expr.PostFix(optimize(expr.left), expr.operator);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+
+    // Same results as BinaryNode.GENERIC, or UNFOLDABLE where it would raise an error.
+    private static Object fold(TokenType operator, Object left, Object right) {
+        if (operator == TokenType.EQUAL_EQUAL)
+            return Interpreter.isEqual(left, right);
+        if (operator == TokenType.BANG_EQUAL)
+            return !Interpreter.isEqual(left, right);
+
+        if (operator == TokenType.PLUS && left instanceof String && right instanceof String)
+            return (String) left + (String) right;
+
+        if (!Numbers.isNumber(left) || !Numbers.isNumber(right))
+            return UNFOLDABLE;
+
+        double a = Numbers.toDouble(left);
+        double b = Numbers.toDouble(right);
+
+        switch (operator) {
+            case PLUS:
+                return Numbers.box(a + b);
+            case MINUS:
+                return Numbers.box(a - b);
+            case STAR:
+                return Numbers.box(a * b);
+            case SLASH:
+                if (b == 0)
+                    return UNFOLDABLE;
+                return Numbers.box(a / b);
+            case PERCENT:
+                return Numbers.box(a % b);
+            case GREATER:
+                return a > b;
+            case GREATER_EQUAL:
+                return a >= b;
+            case LESS:
+                return a < b;
+            case LESS_EQUAL:
+                return a <= b;
+            default:
+                return UNFOLDABLE;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package fr.jellycat;
+
+import java.io.PrintStream;
+import java.util.function.Consumer;
+
+// Where print statements write their lines. Direct writes each line as it comes, like println; the command line
+// uses Buffered, or Threaded with --output-thread, so print-heavy scripts are not bound by one write per line.
+abstract class Output {
+    static final int CAPACITY = 1 << 16;
+    private static final String NEWLINE = System.lineSeparator();
+
+    abstract void println(String line);
+
+    // Sinks with a buffer format the number straight into it.
+    void println(double number) {
+        println(Numbers.toString(number));
+    }
+
+    // Everything printed so far is on its way to the stream when it returns.
+    void flush() {
+    }
+
+    void close() {
+        flush();
+    }
+
+    // Reads System.out on every line, so it follows System.setOut.
+    static final class Direct extends Output {
+        @Override
+        void println(String line) {
+            System.out.println(line);
+        }
+    }
+
+    // Each line goes to a callback, for programs embedding the interpreter.
+    static final class Lines extends Output {
+        private final Consumer<String> sink;
+
+        Lines(Consumer<String> sink) {
+            this.sink = sink;
+        }
+
+        @Override
+        void println(String line) {
+            sink.accept(line);
+        }
+    }
+
+    // Wraps every line in terminal styling on its way to another sink.
+    static final class Styled extends Output {
+        private final Output out;
+        private final String before;
+        private final String after;
+
+        Styled(Output out, String before, String after) {
+            this.out = out;
+            this.before = before;
+            this.after = after;
+        }
+
+        @Override
+        void println(String line) {
+            out.println(before + line + after);
+        }
+
+        @Override
+        void flush() {
+            out.flush();
+        }
+
+        @Override
+        void close() {
+            out.close();
+        }
+    }
+
+    // Lines gather in a buffer written out when it is full, or at every line when someone is watching.
+    static final class Buffered extends Output {
+        private final PrintStream out;
+        private final boolean flushOnNewline;
+        private final StringBuilder buffer = new StringBuilder(CAPACITY);
+
+        Buffered(PrintStream out, boolean flushOnNewline) {
+            this.out = out;
+            this.flushOnNewline = flushOnNewline;
+        }
+
+        @Override
+        void println(String line) {
+            buffer.append(line).append(NEWLINE);
+            if (flushOnNewline || buffer.length() >= CAPACITY) {
+                flush();
+            }
+        }
+
+        @Override
+        void println(double number) {
+            DoubleFormatter.append(buffer, number);
+            buffer.append(NEWLINE);
+            if (flushOnNewline || buffer.length() >= CAPACITY) {
+                flush();
+            }
+        }
+
+        @Override
+        void flush() {
+            if (buffer.length() == 0)
+                return;
+
+            out.print(buffer);
+            out.flush();
+            buffer.setLength(0);
+        }
+    }
+
+    // A writer thread takes the lines while the script goes on; the script only waits when a full buffer is still
+    // ahead of it. Each time the thread wakes up it writes everything printed since, so batches grow with the rate
+    // of printing.
+    static final class Threaded extends Output {
+        private final PrintStream out;
+        private final Thread writer;
+        private StringBuilder pending = new StringBuilder(CAPACITY);
+        private StringBuilder writing = new StringBuilder(CAPACITY);
+        private boolean busy = false;
+        private boolean closed = false;
+
+        Threaded(PrintStream out) {
+            this.out = out;
+            this.writer = new Thread(this::write, "jeevee-output");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        @Override
+        synchronized void println(String line) {
+            reserve();
+            pending.append(line).append(NEWLINE);
+        }
+
+        @Override
+        synchronized void println(double number) {
+            reserve();
+            DoubleFormatter.append(pending, number);
+            pending.append(NEWLINE);
+        }
+
+        // Waits for room, and wakes the writer up for what comes next.
+        private void reserve() {
+            while (pending.length() >= CAPACITY) {
+                await();
+            }
+
+            if (pending.length() == 0 && !busy) {
+                notifyAll();
+            }
+        }
+
+        @Override
+        synchronized void flush() {
+            while (pending.length() > 0 || busy) {
+                await();
+            }
+        }
+
+        @Override
+        void close() {
+            synchronized (this) {
+                flush();
+                closed = true;
+                notifyAll();
+            }
+
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void write() {
+            for (;;) {
+                synchronized (this) {
+                    while (pending.length() == 0 && !closed) {
+                        await();
+                    }
+                    if (pending.length() == 0)
+                        return;
+
+                    StringBuilder batch = pending;
+                    pending = writing;
+                    writing = batch;
+                    busy = true;
+                    notifyAll();
+                }
+
+                out.print(writing);
+                out.flush();
+                writing.setLength(0);
+
+                synchronized (this) {
+                    busy = false;
+                    notifyAll();
+                }
+            }
+        }
+
+        private void await() {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for output.", e);
+            }
+        }
+    }
+}
@@ -10,13 +10,76 @@ class Parser {
     private static class ParseError extends RuntimeException {
     }
 
-    private final List<Token> tokens;
+    private interface Prefix {
+        Expr parse(Parser parser);
+    }
+
+    private interface Infix {
+        Expr parse(Parser parser, Expr left);
+    }
+
+    // Binding powers, loosest first. Infix operators of the same power associate to the left, except assignment
+    // and the conditional which parse their right side at their own power.
+    private static final int ASSIGNMENT_POWER = 1;
+    private static final int CONDITIONAL_POWER = 2;
+    private static final int OR_POWER = 3;
+    private static final int AND_POWER = 4;
+    private static final int EQUALITY_POWER = 5;
+    private static final int COMPARISON_POWER = 6;
+    private static final int TERM_POWER = 7;
+    private static final int FACTOR_POWER = 8;
+    private static final int UNARY_POWER = 9;
+    private static final int POSTFIX_POWER = 10;
+    private static final int CALL_POWER = 11;
+
+    // Indexed by TokenType.ordinal().
+    private static final Prefix[] PREFIX = new Prefix[TokenType.values().length];
+    private static final Infix[] INFIX = new Infix[TokenType.values().length];
+    private static final int[] POWER = new int[TokenType.values().length];
+
+    static {
+        prefix(Parser::literal, FALSE, TRUE, NIL, NUMBER, STRING);
+        prefix(Parser::variable, IDENTIFIER);
+        prefix(Parser::grouping, LEFT_PAREN);
+        prefix(Parser::unary, MINUS, PLUS, BANG, PLUS_PLUS, MINUS_MINUS);
+        prefix(Parser::lambda, LAMBDA);
+
+        infix(Parser::assignment, ASSIGNMENT_POWER, EQUAL);
+        infix(Parser::conditional, CONDITIONAL_POWER, QUESTION_MARK);
+        infix(Parser::logical, OR_POWER, OR);
+        infix(Parser::logical, AND_POWER, AND);
+        infix(Parser::binary, EQUALITY_POWER, BANG_EQUAL, EQUAL_EQUAL);
+        infix(Parser::binary, COMPARISON_POWER, GREATER, GREATER_EQUAL, LESS, LESS_EQUAL);
+        infix(Parser::binary, TERM_POWER, MINUS, PLUS);
+        infix(Parser::binary, FACTOR_POWER, STAR, SLASH, PERCENT);
+        infix(Parser::postfix, POSTFIX_POWER, MINUS_MINUS, PLUS_PLUS);
+        infix(Parser::call, CALL_POWER, LEFT_PAREN);
+    }
+
+    private static void prefix(Prefix parselet, TokenType... types) {
+        for (TokenType type : types) {
+            PREFIX[type.ordinal()] = parselet;
+        }
+    }
+
+    private static void infix(Infix parselet, int power, TokenType... types) {
+        for (TokenType type : types) {
+            INFIX[type.ordinal()] = parselet;
+            POWER[type.ordinal()] = power;
+        }
+    }
+
+    // Tokens are scanned as the parser asks for them, and only become Token objects when the tree keeps them.
+    private final Scanner scanner;
+    // Index of the next token in the source, also used as the column of parse errors.
     private int current = 0;
     private boolean allowExpression;
     private boolean foundExpression = false;
+    // How many function bodies enclose the current token; return is only allowed inside one.
+    private int functions = 0;
 
-    Parser(List<Token> tokens) {
-        this.tokens = tokens;
+    Parser(Scanner scanner) {
+        this.scanner = scanner;
     }
 
     List<Stmt> parse() {
@@ -28,6 +91,10 @@ class Parser {
         return statements;
     }
 
+    List<Diagnostic> diagnostics() {
+        return scanner.diagnostics();
+    }
+
     Object parseREPL() {
         allowExpression = true;
 
@@ -50,6 +117,8 @@ class Parser {
         try {
             if (match(LET))
                 return varDeclaration();
+            if (match(DEF))
+                return function();
 
             return statement();
         } catch (ParseError error) {
@@ -69,6 +138,8 @@ class Parser {
         }
         if (match(PRINT))
             return printStatement();
+        if (match(RETURN))
+            return returnStatement();
         if (match(DO))
             return new Stmt.Block(block());
 
@@ -121,13 +192,15 @@ class Parser {
     }
 
     private Stmt whileStatement() {
+        Token keyword = previous();
         Expr condition = expression();
         Stmt body = statement();
 
-        return new Stmt.While(condition, body);
+        return new Stmt.While(keyword, condition, body);
     }
 
     private Stmt forStatement() {
+        Token keyword = previous();
         Stmt initializer;
         if (match(SEMICOLON)) {
             initializer = null;
@@ -158,7 +231,7 @@ class Parser {
 
         if (condition == null)
             condition = new Expr.Literal(true);
-        body = new Stmt.While(condition, body);
+        body = new Stmt.While(keyword, condition, body);
 
         if (initializer != null) {
             body = new Stmt.Block(Arrays.asList(initializer, body));
@@ -173,188 +246,216 @@ class Parser {
         return new Stmt.Print(value);
     }
 
-    private Stmt varDeclaration() {
-        Token name = consume(IDENTIFIER, "Expect variable name.");
-
-        Expr initializer = null;
-        if (match(EQUAL)) {
-            initializer = expression();
+    private Stmt returnStatement() {
+        Token keyword = previous();
+        if (functions == 0) {
+            error(keyword, "Can't return from top-level code.");
         }
 
-        consume(SEMICOLON, "Expect ';' after variable declaration.");
-        return new Stmt.Var(name, initializer);
-    }
+        Expr value = null;
+        if (!check(SEMICOLON)) {
+            value = expression();
+        }
 
-    private Expr expression() {
-        return assignment();
+        consume(SEMICOLON, "Expect ';' after return value.");
+        return new Stmt.Return(keyword, value);
     }
 
-    private Expr assignment() {
-        Expr expr = conditional();
+    private Stmt function() {
+        consume(IDENTIFIER, "Expect function name.");
+        Token name = previous();
+        consume(LEFT_PAREN, "Expect '(' after function name.");
+        List<Token> params = parameters(RIGHT_PAREN);
+        consume(RIGHT_PAREN, "Expect ')' after parameters.");
 
-        if (match(EQUAL)) {
-            Token equals = previous();
-            Expr value = assignment();
-
-            if (expr instanceof Expr.Variable) {
-                Token name = ((Expr.Variable) expr).name;
-                return new Expr.Assign(name, value);
-            }
-
-            throw error(equals, "Invalid assignment target.");
+        List<Stmt> body;
+        functions++;
+        try {
+            body = block();
+        } finally {
+            functions--;
         }
 
-        return expr;
+        return new Stmt.Function(name, new Expr.Lambda(name, params, body));
     }
 
-    private Expr conditional() {
-        Expr expr = or();
+    private List<Token> parameters(TokenType end) {
+        List<Token> params = new ArrayList<>();
+        if (check(end))
+            return params;
 
-        if (match(QUESTION_MARK)) {
-            Expr consequent = or();
+        do {
+            consume(IDENTIFIER, "Expect parameter name.");
+            Token param = previous();
 
-            consume(COLUMN, "Expect ':' after consequent of conditional expression.");
-
-            Expr alternate = conditional();
+            // Each parameter has a slot of its own, in order.
+            for (Token other : params) {
+                if (other.lexeme.equals(param.lexeme)) {
+                    error(param, "Already a parameter named '" + param.lexeme + "'.");
+                }
+            }
 
-            expr = new Expr.Conditional(expr, consequent, alternate);
-        }
+            params.add(param);
+        } while (match(COMMA));
 
-        return expr;
+        return params;
     }
 
-    private Expr or() {
-        Expr expr = and();
+    private Stmt varDeclaration() {
+        consume(IDENTIFIER, "Expect variable name.");
+        Token name = previous();
 
-        while (match(OR)) {
-            Token operator = previous();
-            Expr right = and();
-            expr = new Expr.Logical(expr, operator, right);
+        Expr initializer = null;
+        if (match(EQUAL)) {
+            initializer = expression();
         }
 
-        return expr;
+        consume(SEMICOLON, "Expect ';' after variable declaration.");
+        return new Stmt.Var(name, initializer);
+    }
+
+    private Expr expression() {
+        return expression(ASSIGNMENT_POWER);
     }
 
-    private Expr and() {
-        Expr expr = equality();
+    // Parses the operators binding at least as tightly as power, by looking the tokens up in PREFIX, INFIX and
+    // POWER instead of descending one method per precedence level.
+    private Expr expression(int power) {
+        Prefix prefix = PREFIX[scanner.type(current).ordinal()];
+        if (prefix == null)
+            throw error(peek(), "Expect expression.");
 
-        while (match(AND)) {
-            Token operator = previous();
-            Expr right = equality();
-            expr = new Expr.Logical(expr, operator, right);
-        }
+        advance();
+        Expr expr = prefix.parse(this);
 
-        return expr;
-    }
+        for (;;) {
+            TokenType type = scanner.type(current);
+            Infix infix = INFIX[type.ordinal()];
+            if (infix == null || POWER[type.ordinal()] < power)
+                return expr;
 
-    private Expr equality() {
-        Expr expr = comparison();
+            // Only a primary takes a postfix operator, and only one.
+            if (POWER[type.ordinal()] == POSTFIX_POWER && !isPrimary(expr))
+                return expr;
 
-        while (match(BANG_EQUAL, EQUAL_EQUAL)) {
-            Token operator = previous();
-            Expr right = comparison();
-            expr = new Expr.Binary(expr, operator, right);
+            advance();
+            expr = infix.parse(this, expr);
         }
+    }
 
-        return expr;
+    private static boolean isPrimary(Expr expr) {
+        return expr instanceof Expr.Literal || expr instanceof Expr.Variable || expr instanceof Expr.Grouping;
     }
 
-    private Expr comparison() {
-        Expr expr = term();
+    private Expr assignment(Expr target) {
+        Token equals = previous();
+        Expr value = expression(ASSIGNMENT_POWER);
 
-        while (match(GREATER, GREATER_EQUAL, LESS, LESS_EQUAL)) {
-            Token operator = previous();
-            Expr right = term();
-            expr = new Expr.Binary(expr, operator, right);
+        if (target instanceof Expr.Variable) {
+            Token name = ((Expr.Variable) target).name;
+            return new Expr.Assign(name, value);
         }
 
-        return expr;
+        throw error(equals, "Invalid assignment target.");
     }
 
-    private Expr term() {
-        Expr expr = factor();
+    private Expr conditional(Expr test) {
+        Expr consequent = expression(OR_POWER);
 
-        while (match(MINUS, PLUS)) {
-            Token operator = previous();
-            Expr right = factor();
-            expr = new Expr.Binary(expr, operator, right);
-        }
+        consume(COLUMN, "Expect ':' after consequent of conditional expression.");
 
-        return expr;
-    }
+        Expr alternate = expression(CONDITIONAL_POWER);
 
-    private Expr factor() {
-        Expr expr = unary();
+        return new Expr.Conditional(test, consequent, alternate);
+    }
 
-        while (match(STAR, SLASH, PERCENT)) {
-            Token operator = previous();
-            Expr right = unary();
-            expr = new Expr.Binary(expr, operator, right);
-        }
+    private Expr logical(Expr left) {
+        Token operator = previous();
+        Expr right = expression(POWER[operator.type.ordinal()] + 1);
+        return new Expr.Logical(left, operator, right);
+    }
 
-        return expr;
+    private Expr binary(Expr left) {
+        Token operator = previous();
+        Expr right = expression(POWER[operator.type.ordinal()] + 1);
+        return new Expr.Binary(left, operator, right);
     }
 
     private Expr unary() {
-        if (match(MINUS, PLUS, BANG, PLUS_PLUS, MINUS_MINUS)) {
-            Token operator = previous();
-            Expr right = unary();
-            return new Expr.Unary(operator, right);
-        }
+        Token operator = previous();
+        Expr right = expression(UNARY_POWER);
+        return new Expr.Unary(operator, right);
+    }
 
-        return postfix();
+    private Expr postfix(Expr left) {
+        return new Expr.PostFix(left, previous());
     }
 
-    private Expr postfix() {
-        Expr expr = primary();
+    // The arguments are parsed at assignment power, so a comma separates them.
+    private Expr call(Expr callee) {
+        Token paren = previous();
+        List<Expr> arguments = new ArrayList<>();
 
-        if (match(MINUS_MINUS, PLUS_PLUS)) {
-            Token operator = previous();
-            return new Expr.PostFix(expr, operator);
+        if (!check(RIGHT_PAREN)) {
+            do {
+                arguments.add(expression());
+            } while (match(COMMA));
         }
 
-        return expr;
+        consume(RIGHT_PAREN, "Expect ')' after arguments.");
+        return new Expr.Call(callee, paren, arguments);
     }
 
-    private Expr primary() {
-        if (match(FALSE))
-            return new Expr.Literal(false);
-        if (match(TRUE))
-            return new Expr.Literal(true);
-        if (match(NIL))
-            return new Expr.Literal(null);
-
-        if (match(NUMBER, STRING)) {
-            return new Expr.Literal(previous().literal);
-        }
+    // lambda a, b: expression, a function returning the expression. Its body extends as far right as it can.
+    private Expr lambda() {
+        Token keyword = previous();
+        List<Token> params = parameters(COLUMN);
+        consume(COLUMN, "Expect ':' after lambda parameters.");
 
-        if (match(IDENTIFIER)) {
-            return new Expr.Variable(previous());
+        Expr value = expression();
+        List<Stmt> body = Arrays.asList(new Stmt.Return(keyword, value));
+        return new Expr.Lambda(keyword, params, body);
+    }
+
+    private Expr literal() {
+        switch (scanner.type(current - 1)) {
+            case FALSE:
+                return new Expr.Literal(false);
+            case TRUE:
+                return new Expr.Literal(true);
+            case NIL:
+                return new Expr.Literal(null);
+            case NUMBER:
+                return new Expr.Literal(Numbers.box((double) previous().literal));
+            default:
+                return new Expr.Literal(previous().literal);
         }
+    }
 
-        if (match(LEFT_PAREN)) {
-            Expr expr = expression();
-            consume(RIGHT_PAREN, "Expect ')' after expression.");
-            return new Expr.Grouping(expr);
-        }
+    private Expr variable() {
+        return new Expr.Variable(previous());
+    }
 
-        throw error(peek(), "Expect expression.");
+    private Expr grouping() {
+        Expr expr = expression();
+        consume(RIGHT_PAREN, "Expect ')' after expression.");
+        return new Expr.Grouping(expr);
     }
 
-    private boolean match(TokenType... types) {
-        for (TokenType type : types) {
-            if (check(type)) {
-                advance();
-                return true;
-            }
+    private boolean match(TokenType type) {
+        if (check(type)) {
+            advance();
+            return true;
         }
 
         return false;
     }
 
-    private Token consume(TokenType type, String message) {
-        if (check(type))
-            return advance();
+    private void consume(TokenType type, String message) {
+        if (check(type)) {
+            advance();
+            return;
+        }
 
         throw error(peek(), message);
     }
@@ -362,56 +463,58 @@ class Parser {
     private boolean check(TokenType type) {
         if (isAtEnd())
             return false;
-        return peek().type == type;
+        return scanner.type(current) == type;
     }
 
-    private Token advance() {
-        if (!isAtEnd())
+    private void advance() {
+        if (!isAtEnd()) {
             current++;
-        return previous();
+            scanner.release(current - 1);
+        }
     }
 
     private boolean isAtEnd() {
-        return peek().type == EOF;
+        return scanner.type(current) == EOF;
     }
 
     private Token peek() {
-        return tokens.get(current);
+        return scanner.token(current);
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return scanner.token(current - 1);
     }
 
     private ParseError error(Token token, String message) {
-        Jeevee.error(token, current, message);
+        scanner.report(Diagnostic.syntax(token, current, message));
         return new ParseError();
     }
 
+    // Skips to what is likely the start of the next statement, so one mistake reports one error.
     private void synchronize() {
         advance();
 
         while (!isAtEnd()) {
-            if (previous().type == SEMICOLON)
+            if (scanner.type(current - 1) == SEMICOLON)
                 return;
-        }
 
-        switch (peek().type) {
-            case CLASS:
-            case DEF:
-            case IF:
-            case FOR:
-            case LAMBDA:
-            case MATCH:
-            case PRINT:
-            case RETURN:
-            case LET:
-            case WHILE:
-                return;
-            default:
-                break;
-        }
+            switch (scanner.type(current)) {
+                case CLASS:
+                case DEF:
+                case IF:
+                case FOR:
+                case LAMBDA:
+                case MATCH:
+                case PRINT:
+                case RETURN:
+                case LET:
+                case WHILE:
+                    return;
+                default:
+                    break;
+            }
 
-        advance();
+            advance();
+        }
     }
 }
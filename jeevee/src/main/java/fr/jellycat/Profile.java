@@ -0,0 +1,257 @@
+package fr.jellycat;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Execution counts and times of the statements a ProfilingInterpreter ran, by statement, by source line and by
+// stack of enclosing statements. Self time excludes the nested statements; total time includes them, counted once
+// when a statement or line is already running further up the stack.
+final class Profile {
+    private static class Counts {
+        long count = 0;
+        long self = 0;
+        long total = 0;
+        // Executions of it on the stack right now.
+        int active = 0;
+    }
+
+    private static class Line extends Counts {
+        final int line;
+        final List<Site> sites = new ArrayList<>();
+
+        Line(int line) {
+            this.line = line;
+        }
+    }
+
+    private static class Site extends Counts {
+        final Line line;
+        final String label;
+
+        Site(Line line, String label) {
+            this.line = line;
+            this.label = label;
+        }
+    }
+
+    // One statement reached through one stack of enclosing statements.
+    private static class Node {
+        final Site site;
+        final Map<Site, Node> children = new IdentityHashMap<>();
+        long self = 0;
+
+        Node(Site site) {
+            this.site = site;
+        }
+
+        Node child(Site site) {
+            Node child = children.get(site);
+            if (child == null) {
+                child = new Node(site);
+                children.put(site, child);
+            }
+
+            return child;
+        }
+    }
+
+    private final String script;
+    private final Map<Stmt, Site> sites = new IdentityHashMap<>();
+    private final Map<Integer, Line> lines = new HashMap<>();
+    private final Node root;
+
+    // The running statements, innermost last, with their start times and the time spent in nested statements.
+    private Node[] nodes = new Node[64];
+    private long[] starts = new long[64];
+    private long[] nested = new long[64];
+    private int depth = 0;
+
+    Profile(String script) {
+        this.script = script;
+        this.root = new Node(new Site(new Line(0), script));
+        nodes[0] = root;
+    }
+
+    void enter(Stmt stmt) {
+        Site site = sites.get(stmt);
+        if (site == null) {
+            site = site(stmt);
+        }
+
+        if (++depth == nodes.length) {
+            nodes = Arrays.copyOf(nodes, depth * 2);
+            starts = Arrays.copyOf(starts, depth * 2);
+            nested = Arrays.copyOf(nested, depth * 2);
+        }
+
+        nodes[depth] = nodes[depth - 1].child(site);
+        nested[depth] = 0;
+        site.count++;
+        site.active++;
+        site.line.count++;
+        site.line.active++;
+        starts[depth] = System.nanoTime();
+    }
+
+    void exit() {
+        long elapsed = System.nanoTime() - starts[depth];
+        long self = elapsed - nested[depth];
+        Node node = nodes[depth];
+        nodes[depth] = null;
+        depth--;
+        nested[depth] += elapsed;
+
+        Site site = node.site;
+        node.self += self;
+        site.self += self;
+        site.line.self += self;
+        if (--site.active == 0) {
+            site.total += elapsed;
+        }
+        if (--site.line.active == 0) {
+            site.line.total += elapsed;
+        }
+    }
+
+    // Statements without a token of their own, like print 1, belong to the line of the enclosing statement.
+    private Site site(Stmt stmt) {
+        Token token = firstToken(stmt);
+        int number = token != null ? token.line : nodes[depth].site.line.line;
+
+        Line line = lines.get(number);
+        if (line == null) {
+            line = new Line(number);
+            lines.put(number, line);
+        }
+
+        String kind = stmt.getClass().getSimpleName().toLowerCase();
+        Site site = new Site(line, script + ":" + number + " " + kind);
+        line.sites.add(site);
+        sites.put(stmt, site);
+        return site;
+    }
+
+    private static Token firstToken(Stmt stmt) {
+        if (stmt instanceof Stmt.Expression) {
+            return firstToken(((Stmt.Expression) stmt).expression);
+        } else if (stmt instanceof Stmt.Print) {
+            return firstToken(((Stmt.Print) stmt).expression);
+        } else if (stmt instanceof Stmt.Var) {
+            return ((Stmt.Var) stmt).name;
+        } else if (stmt instanceof Stmt.Block) {
+            for (Stmt statement : ((Stmt.Block) stmt).statements) {
+                Token token = firstToken(statement);
+                if (token != null)
+                    return token;
+            }
+        } else if (stmt instanceof Stmt.If) {
+            return firstToken(((Stmt.If) stmt).condition);
+        } else if (stmt instanceof Stmt.While) {
+            return firstToken(((Stmt.While) stmt).condition);
+        } else if (stmt instanceof Stmt.For) {
+            return ((Stmt.For) stmt).counter.name;
+        } else if (stmt instanceof Stmt.Function) {
+            return ((Stmt.Function) stmt).name;
+        } else if (stmt instanceof Stmt.Return) {
+            return ((Stmt.Return) stmt).keyword;
+        }
+
+        return null;
+    }
+
+    private static Token firstToken(Expr expr) {
+        if (expr instanceof Expr.Assign) {
+            return ((Expr.Assign) expr).name;
+        } else if (expr instanceof Expr.Variable) {
+            return ((Expr.Variable) expr).name;
+        } else if (expr instanceof Expr.Lambda) {
+            return ((Expr.Lambda) expr).name;
+        } else if (expr instanceof Expr.Call) {
+            Token token = firstToken(((Expr.Call) expr).callee);
+            return token != null ? token : ((Expr.Call) expr).paren;
+        } else if (expr instanceof Expr.Unary) {
+            return ((Expr.Unary) expr).operator;
+        } else if (expr instanceof Expr.Grouping) {
+            return firstToken(((Expr.Grouping) expr).expression);
+        } else if (expr instanceof Expr.Invariant) {
+            return firstToken(((Expr.Invariant) expr).expression);
+        } else if (expr instanceof Expr.Binary) {
+            Token token = firstToken(((Expr.Binary) expr).left);
+            return token != null ? token : ((Expr.Binary) expr).operator;
+        } else if (expr instanceof Expr.Logical) {
+            Token token = firstToken(((Expr.Logical) expr).left);
+            return token != null ? token : ((Expr.Logical) expr).operator;
+        } else if (expr instanceof Expr.PostFix) {
+            Token token = firstToken(((Expr.PostFix) expr).left);
+            return token != null ? token : ((Expr.PostFix) expr).operator;
+        } else if (expr instanceof Expr.Conditional) {
+            Expr.Conditional conditional = (Expr.Conditional) expr;
+            Token token = firstToken(conditional.test);
+            if (token == null) {
+                token = firstToken(conditional.consequent);
+            }
+            return token != null ? token : firstToken(conditional.alternate);
+        }
+
+        return null;
+    }
+
+    // The collapsed stacks flamegraph.pl, speedscope and most flame graph tools read: one line per stack, frames
+    // separated by ';', then the self time in nanoseconds.
+    void writeCollapsed(Path path) throws IOException {
+        Map<String, Long> stacks = new LinkedHashMap<>();
+        collapse(root, script, stacks);
+
+        try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Long> stack : stacks.entrySet()) {
+                writer.write(stack.getKey() + " " + stack.getValue() + "\n");
+            }
+        }
+    }
+
+    private static void collapse(Node node, String stack, Map<String, Long> stacks) {
+        if (node.self > 0) {
+            Long self = stacks.get(stack);
+            stacks.put(stack, self == null ? node.self : self + node.self);
+        }
+
+        for (Node child : node.children.values()) {
+            collapse(child, stack + ";" + child.site.label.replace(';', ','), stacks);
+        }
+    }
+
+    // The lines with the most self time.
+    void printSummary(PrintStream out, int top) {
+        // Time spent in top-level statements.
+        long elapsed = nested[0];
+        List<Line> hottest = new ArrayList<>(lines.values());
+        hottest.sort((a, b) -> Long.compare(b.self, a.self));
+
+        out.printf("Profile of %s: %.3f ms%n", script, elapsed / 1e6);
+        out.printf("%6s %12s %12s %7s %12s  %s%n", "line", "count", "self ms", "self", "total ms", "statements");
+
+        for (Line line : hottest.subList(0, Math.min(top, hottest.size()))) {
+            StringBuilder kinds = new StringBuilder();
+            for (Site site : line.sites) {
+                String kind = site.label.substring(site.label.lastIndexOf(' ') + 1);
+                if (kinds.indexOf(kind) < 0) {
+                    kinds.append(kinds.length() == 0 ? "" : ", ").append(kind);
+                }
+            }
+
+            out.printf("%6d %12d %12.3f %6.1f%% %12.3f  %s%n", line.line, line.count, line.self / 1e6,
+                    elapsed == 0 ? 0.0 : 100.0 * line.self / elapsed, line.total / 1e6, kinds);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package fr.jellycat;
+
+// The interpreter used by --profile: every statement is timed, and loops stay interpreted so the statements in
+// them keep being counted. A separate class keeps Interpreter.execute free of any check when not profiling.
+final class ProfilingInterpreter extends Interpreter {
+    private final Profile profile;
+
+    ProfilingInterpreter(Profile profile, Output output) {
+        super(output, false);
+        this.profile = profile;
+    }
+
+    @Override
+    void execute(Stmt stmt) {
+        profile.enter(stmt);
+        try {
+            super.execute(stmt);
+        } finally {
+            profile.exit();
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package fr.jellycat;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+// A compiled script. Nothing a run does changes what it means, so one program can run in any number of contexts at
+// once, from any thread. What the interpreter learns along the way, like the operand types at each operator and
+// which loops are hot enough to compile, is kept in the tree and benefits every later run.
+public final class Program {
+    private final List<Stmt> statements;
+    // The slot of each global in the contexts running it, shared with the other programs of its engine.
+    private final GlobalSlots globals;
+    private final List<Diagnostic> diagnostics;
+
+    Program(List<Stmt> statements, GlobalSlots globals, List<Diagnostic> diagnostics) {
+        this.statements = Collections.unmodifiableList(statements);
+        this.globals = globals;
+        this.diagnostics = Collections.unmodifiableList(diagnostics);
+    }
+
+    // The syntax errors, in the order they appear in the source.
+    public List<Diagnostic> diagnostics() {
+        return diagnostics;
+    }
+
+    public boolean hasErrors() {
+        return !diagnostics.isEmpty();
+    }
+
+    // The global variables the script names, and those of every other script its engine compiled: functions they
+    // define may use them when this one calls them.
+    public Set<String> globals() {
+        return globals.names();
+    }
+
+    List<Stmt> statements() {
+        return statements;
+    }
+
+    // Null when no script of the engine names it.
+    Integer slot(String name) {
+        return globals.find(name);
+    }
+
+    GlobalSlots globalSlots() {
+        return globals;
+    }
+}
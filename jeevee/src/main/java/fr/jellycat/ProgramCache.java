@@ -0,0 +1,808 @@
+package fr.jellycat;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// Keeps the optimized and resolved trees of scripts on disk, so running an unchanged script again skips the scanner,
+// parser, optimizer and resolver. Files are named after a hash of the source, the optimization level and VERSION;
+// a missing, stale or damaged file is a miss and the script is parsed again. A CRC32 of the trees tells damaged
+// files apart, as bytes flipped in a slot or a depth would still decode.
+final class ProgramCache {
+    // Change it whenever Expr, Stmt, the optimizer or the resolver change the trees they produce.
+    private static final String VERSION = "jeevee 0.1, cache format 6";
+    private static final int MAGIC = 0x4a564331;
+
+    private static final int NONE = 0;
+
+    private static final int ASSIGN = 1;
+    private static final int CONDITIONAL = 2;
+    private static final int LOGICAL = 3;
+    private static final int BINARY = 4;
+    private static final int GROUPING = 5;
+    private static final int INVARIANT = 6;
+    // A later use of an invariant already written, which the loop and its body share.
+    private static final int INVARIANT_REFERENCE = 7;
+    private static final int LITERAL = 8;
+    private static final int UNARY = 9;
+    private static final int POSTFIX = 10;
+    private static final int VARIABLE = 11;
+
+    private static final int BLOCK = 12;
+    private static final int EXPRESSION = 13;
+    private static final int FOR = 14;
+    private static final int IF = 15;
+    private static final int PRINT = 16;
+    private static final int VAR = 17;
+    private static final int WHILE = 18;
+
+    private static final int CALL = 19;
+    private static final int LAMBDA = 20;
+    private static final int FUNCTION = 21;
+    private static final int RETURN = 22;
+
+    private static final int NIL = 0;
+    private static final int FALSE = 1;
+    private static final int TRUE = 2;
+    private static final int NUMBER = 3;
+    private static final int STRING = 4;
+    private static final int INTEGER = 5;
+
+    private static final TokenType[] TOKEN_TYPES = TokenType.values();
+
+    private final Path directory;
+    private final int optLevel;
+
+    private ProgramCache(Path directory, int optLevel) {
+        this.directory = directory;
+        this.optLevel = optLevel;
+    }
+
+    // Null when disabled with -Djeevee.cache=false. The directory can be moved with -Djeevee.cache.dir.
+    static ProgramCache open(int optLevel) {
+        if (System.getProperty("jeevee.cache", "true").equals("false"))
+            return null;
+
+        String directory = System.getProperty("jeevee.cache.dir");
+        if (directory == null) {
+            return new ProgramCache(Paths.get(System.getProperty("user.home"), ".cache", "jeevee"), optLevel);
+        }
+
+        return new ProgramCache(Paths.get(directory), optLevel);
+    }
+
+    static ProgramCache at(Path directory, int optLevel) {
+        return new ProgramCache(directory, optLevel);
+    }
+
+    byte[] key(ByteBuffer source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(VERSION.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) optLevel);
+            digest.update(source.duplicate());
+            return digest.digest();
+        } catch (NoSuchAlgorithmException error) {
+            // Every Java platform has SHA-256.
+            throw new IllegalStateException(error);
+        }
+    }
+
+    List<Stmt> load(byte[] key) {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file(key));
+        } catch (IOException error) {
+            return null;
+        }
+
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            if (buffer.getInt() != MAGIC)
+                return null;
+
+            byte[] stored = new byte[key.length];
+            buffer.get(stored);
+            if (!Arrays.equals(stored, key))
+                return null;
+
+            int checksum = buffer.getInt();
+            if (checksum != checksum(bytes, buffer.position(), buffer.remaining()))
+                return null;
+
+            return new Reader(buffer).statements();
+        } catch (RuntimeException error) {
+            // Whatever the decoding trips on, past the checksum.
+            return null;
+        }
+    }
+
+    // Best effort: a cache that cannot be written only means parsing again next time.
+    void store(byte[] key, List<Stmt> statements) {
+        Writer writer = new Writer();
+        writer.statements(statements);
+        byte[] trees = writer.toByteArray();
+        ByteBuffer contents = ByteBuffer.allocate(4 + key.length + 4 + trees.length);
+        contents.putInt(MAGIC).put(key).putInt(checksum(trees, 0, trees.length)).put(trees);
+
+        Path temporary = null;
+        try {
+            Files.createDirectories(directory);
+            // Written aside then renamed, so concurrent runs of the same script never read half a file.
+            temporary = Files.createTempFile(directory, "jvc", ".tmp");
+            Files.write(temporary, contents.array());
+            Files.move(temporary, file(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | UnsupportedOperationException error) {
+            if (temporary != null) {
+                try {
+                    Files.deleteIfExists(temporary);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static int checksum(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private Path file(byte[] key) {
+        StringBuilder name = new StringBuilder(key.length * 2 + 4);
+        for (byte b : key) {
+            name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+
+        return directory.resolve(name.append(".jvc").toString());
+    }
+
+    // Nodes are written depth first as a tag and their fields, including what the resolver filled in. Numbers are
+    // variable-length and strings are written once, then referred to by index.
+    private static class Writer implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private byte[] bytes = new byte[4096];
+        private int size = 0;
+        private final Map<String, Integer> strings = new HashMap<>();
+        private final Map<Expr.Invariant, Integer> invariants = new IdentityHashMap<>();
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+
+        void statements(List<Stmt> statements) {
+            writeInt(statements.size());
+            for (Stmt statement : statements) {
+                statement.accept(this);
+            }
+        }
+
+        private void statementsOrNull(List<Stmt> statements) {
+            if (statements == null) {
+                writeInt(-1);
+            } else {
+                statements(statements);
+            }
+        }
+
+        private void expression(Expr expr) {
+            if (expr == null) {
+                writeInt(NONE);
+            } else {
+                expr.accept(this);
+            }
+        }
+
+        private void expressions(List<Expr> exprs) {
+            writeInt(exprs.size());
+            for (Expr expr : exprs) {
+                expression(expr);
+            }
+        }
+
+        private void tokens(List<Token> tokens) {
+            writeInt(tokens.size());
+            for (Token token : tokens) {
+                token(token);
+            }
+        }
+
+        private void token(Token token) {
+            writeInt(token.type.ordinal());
+            writeString(token.lexeme);
+            writeInt(token.line);
+            writeInt(token.column);
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            writeInt(BLOCK);
+            statements(stmt.statements);
+            writeInt(stmt.locals);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            writeInt(EXPRESSION);
+            expression(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitForStmt(Stmt.For stmt) {
+            writeInt(FOR);
+            stmt.counter.accept(this);
+            token(stmt.operator);
+            expression(stmt.limit);
+            writeDouble(stmt.step);
+            writeInt(stmt.invariants.size());
+            for (Expr.Invariant invariant : stmt.invariants) {
+                expression(invariant);
+            }
+            stmt.body.accept(this);
+            writeInt(stmt.locals);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            writeInt(IF);
+            expression(stmt.condition);
+            statements(stmt.consequent);
+            statementsOrNull(stmt.alternate);
+            writeInt(stmt.consequentLocals);
+            writeInt(stmt.alternateLocals);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            writeInt(PRINT);
+            expression(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            writeInt(VAR);
+            token(stmt.name);
+            expression(stmt.initializer);
+            writeInt(stmt.depth);
+            writeInt(stmt.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            writeInt(FUNCTION);
+            token(stmt.name);
+            expression(stmt.function);
+            writeInt(stmt.depth);
+            writeInt(stmt.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            writeInt(RETURN);
+            token(stmt.keyword);
+            expression(stmt.value);
+            writeInt(stmt.tail ? 1 : 0);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            writeInt(WHILE);
+            token(stmt.keyword);
+            expression(stmt.condition);
+            stmt.body.accept(this);
+            writeInt(stmt.locals);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            writeInt(ASSIGN);
+            token(expr.name);
+            expression(expr.value);
+            writeInt(expr.depth);
+            writeInt(expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            writeInt(CALL);
+            expression(expr.callee);
+            token(expr.paren);
+            expressions(expr.arguments);
+            return null;
+        }
+
+        @Override
+        public Void visitLambdaExpr(Expr.Lambda expr) {
+            writeInt(LAMBDA);
+            token(expr.name);
+            tokens(expr.params);
+            statements(expr.body);
+            writeInt(expr.locals);
+            writeInts(expr.captures);
+            writeInts(expr.cells);
+            return null;
+        }
+
+        @Override
+        public Void visitConditionalExpr(Expr.Conditional expr) {
+            writeInt(CONDITIONAL);
+            expression(expr.test);
+            expression(expr.consequent);
+            expression(expr.alternate);
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            writeInt(LOGICAL);
+            expression(expr.left);
+            token(expr.operator);
+            expression(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            writeInt(BINARY);
+            expression(expr.left);
+            token(expr.operator);
+            expression(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            writeInt(GROUPING);
+            expression(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitInvariantExpr(Expr.Invariant expr) {
+            Integer index = invariants.get(expr);
+            if (index != null) {
+                writeInt(INVARIANT_REFERENCE);
+                writeInt(index);
+                return null;
+            }
+
+            invariants.put(expr, invariants.size());
+            writeInt(INVARIANT);
+            expression(expr.expression);
+            writeInt(expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            writeInt(LITERAL);
+
+            Object value = expr.value;
+            if (value == null) {
+                writeInt(NIL);
+            } else if (value instanceof Boolean) {
+                writeInt((Boolean) value ? TRUE : FALSE);
+            } else if (value instanceof Long) {
+                writeInt(INTEGER);
+                writeLong((Long) value);
+            } else if (value instanceof Double) {
+                writeInt(NUMBER);
+                writeDouble((Double) value);
+            } else {
+                writeInt(STRING);
+                writeString((String) value);
+            }
+
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            writeInt(UNARY);
+            token(expr.operator);
+            expression(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitPostFixExpr(Expr.PostFix expr) {
+            writeInt(POSTFIX);
+            expression(expr.left);
+            token(expr.operator);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            writeInt(VARIABLE);
+            token(expr.name);
+            writeInt(expr.depth);
+            writeInt(expr.slot);
+            return null;
+        }
+
+        private void writeString(String value) {
+            Integer index = strings.get(value);
+            if (index != null) {
+                writeInt(index);
+                return;
+            }
+
+            // The next free index introduces a new string.
+            writeInt(strings.size());
+            strings.put(value, strings.size());
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            writeInt(utf8.length);
+            writeBytes(utf8);
+        }
+
+        // Zigzag varint, so -1 takes one byte like small positive numbers.
+        private void writeInt(int value) {
+            int bits = (value << 1) ^ (value >> 31);
+            while ((bits & ~0x7f) != 0) {
+                writeByte((bits & 0x7f) | 0x80);
+                bits >>>= 7;
+            }
+            writeByte(bits);
+        }
+
+        private void writeInts(int[] values) {
+            writeInt(values.length);
+            for (int value : values) {
+                writeInt(value);
+            }
+        }
+
+        private void writeLong(long value) {
+            long bits = (value << 1) ^ (value >> 63);
+            while ((bits & ~0x7fL) != 0) {
+                writeByte((int) (bits & 0x7f) | 0x80);
+                bits >>>= 7;
+            }
+            writeByte((int) bits);
+        }
+
+        private void writeInt32(int value) {
+            writeByte(value >>> 24);
+            writeByte(value >>> 16);
+            writeByte(value >>> 8);
+            writeByte(value);
+        }
+
+        private void writeDouble(double value) {
+            long bits = Double.doubleToRawLongBits(value);
+            writeInt32((int) (bits >>> 32));
+            writeInt32((int) bits);
+        }
+
+        private void writeBytes(byte[] values) {
+            ensure(values.length);
+            System.arraycopy(values, 0, bytes, size, values.length);
+            size += values.length;
+        }
+
+        private void writeByte(int value) {
+            ensure(1);
+            bytes[size++] = (byte) value;
+        }
+
+        private void ensure(int more) {
+            if (size + more > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + more));
+            }
+        }
+    }
+
+    // Malformed input ends in one of the exceptions load treats as a miss.
+    private static class Reader {
+        private final ByteBuffer buffer;
+        private final List<String> strings = new ArrayList<>();
+        private final List<Expr.Invariant> invariants = new ArrayList<>();
+
+        Reader(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        List<Stmt> statements() {
+            int count = readInt();
+            if (count < 0)
+                throw new IllegalArgumentException("Negative statement count.");
+
+            List<Stmt> statements = new ArrayList<>(Math.min(count, buffer.remaining()));
+            for (int i = 0; i < count; i++) {
+                statements.add(statement());
+            }
+
+            return statements;
+        }
+
+        private List<Stmt> statementsOrNull() {
+            int mark = buffer.position();
+            if (readInt() == -1)
+                return null;
+
+            buffer.position(mark);
+            return statements();
+        }
+
+        private List<Expr> expressions() {
+            int count = count();
+            List<Expr> exprs = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                exprs.add(expression());
+            }
+
+            return exprs;
+        }
+
+        private List<Token> tokens() {
+            int count = count();
+            List<Token> tokens = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                tokens.add(token());
+            }
+
+            return tokens;
+        }
+
+        private int[] ints() {
+            int[] values = new int[count()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = readInt();
+            }
+
+            return values;
+        }
+
+        // Every element takes at least a byte, which bounds what a damaged count can allocate.
+        private int count() {
+            int count = readInt();
+            if (count < 0 || count > buffer.remaining())
+                throw new IllegalArgumentException("Bad count " + count + ".");
+
+            return count;
+        }
+
+        private Token token() {
+            int type = readInt();
+            if (type < 0 || type >= TOKEN_TYPES.length)
+                throw new IllegalArgumentException("Unknown token type " + type + ".");
+
+            String lexeme = readString();
+            int line = readInt();
+            int column = readInt();
+            return new Token(TOKEN_TYPES[type], lexeme, null, line, column);
+        }
+
+        private Stmt statement() {
+            int tag = readInt();
+
+            switch (tag) {
+                case BLOCK: {
+                    Stmt.Block stmt = new Stmt.Block(statements());
+                    stmt.locals = readInt();
+                    return stmt;
+                }
+                case EXPRESSION:
+                    return new Stmt.Expression(expression());
+                case FOR: {
+                    Stmt.Var counter = (Stmt.Var) statement();
+                    Token operator = token();
+                    Expr limit = expression();
+                    double step = readDouble();
+                    int count = readInt();
+                    List<Expr.Invariant> loopInvariants = new ArrayList<>();
+                    for (int i = 0; i < count; i++) {
+                        loopInvariants.add((Expr.Invariant) expression());
+                    }
+                    Stmt body = statement();
+
+                    Stmt.For stmt = new Stmt.For(counter, operator, limit, step, body, loopInvariants);
+                    stmt.locals = readInt();
+                    return stmt;
+                }
+                case IF: {
+                    Expr condition = expression();
+                    List<Stmt> consequent = statements();
+                    List<Stmt> alternate = statementsOrNull();
+
+                    Stmt.If stmt = new Stmt.If(condition, consequent, alternate);
+                    stmt.consequentLocals = readInt();
+                    stmt.alternateLocals = readInt();
+                    return stmt;
+                }
+                case PRINT:
+                    return new Stmt.Print(expression());
+                case VAR: {
+                    Stmt.Var stmt = new Stmt.Var(token(), expression());
+                    stmt.depth = readInt();
+                    stmt.slot = readInt();
+                    return stmt;
+                }
+                case FUNCTION: {
+                    Token name = token();
+                    Stmt.Function stmt = new Stmt.Function(name, (Expr.Lambda) expression());
+                    stmt.depth = readInt();
+                    stmt.slot = readInt();
+                    return stmt;
+                }
+                case RETURN: {
+                    Token keyword = token();
+                    Stmt.Return stmt = new Stmt.Return(keyword, expression());
+                    stmt.tail = readInt() != 0;
+                    return stmt;
+                }
+                case WHILE: {
+                    Token keyword = token();
+                    Expr condition = expression();
+                    Stmt.While stmt = new Stmt.While(keyword, condition, statement());
+                    stmt.locals = readInt();
+                    return stmt;
+                }
+                default:
+                    throw new IllegalArgumentException("Unknown statement tag " + tag + ".");
+            }
+        }
+
+        private Expr expression() {
+            int tag = readInt();
+
+            switch (tag) {
+                case NONE:
+                    return null;
+                case ASSIGN: {
+                    Expr.Assign expr = new Expr.Assign(token(), expression());
+                    expr.depth = readInt();
+                    expr.slot = readInt();
+                    return expr;
+                }
+                case CALL: {
+                    Expr callee = expression();
+                    Token paren = token();
+                    return new Expr.Call(callee, paren, expressions());
+                }
+                case LAMBDA: {
+                    Token name = token();
+                    List<Token> params = tokens();
+                    Expr.Lambda expr = new Expr.Lambda(name, params, statements());
+                    expr.locals = readInt();
+                    expr.captures = ints();
+                    expr.cells = ints();
+                    return expr;
+                }
+                case CONDITIONAL: {
+                    Expr test = expression();
+                    Expr consequent = expression();
+                    return new Expr.Conditional(test, consequent, expression());
+                }
+                case LOGICAL: {
+                    Expr left = expression();
+                    Token operator = token();
+                    return new Expr.Logical(left, operator, expression());
+                }
+                case BINARY: {
+                    Expr left = expression();
+                    Token operator = token();
+                    return new Expr.Binary(left, operator, expression());
+                }
+                case GROUPING:
+                    return new Expr.Grouping(expression());
+                case INVARIANT: {
+                    Expr.Invariant expr = new Expr.Invariant(expression());
+                    expr.slot = readInt();
+                    invariants.add(expr);
+                    return expr;
+                }
+                case INVARIANT_REFERENCE:
+                    return invariants.get(readInt());
+                case LITERAL:
+                    return new Expr.Literal(literal());
+                case UNARY: {
+                    Token operator = token();
+                    return new Expr.Unary(operator, expression());
+                }
+                case POSTFIX: {
+                    Expr left = expression();
+                    return new Expr.PostFix(left, token());
+                }
+                case VARIABLE: {
+                    Expr.Variable expr = new Expr.Variable(token());
+                    expr.depth = readInt();
+                    expr.slot = readInt();
+                    return expr;
+                }
+                default:
+                    throw new IllegalArgumentException("Unknown expression tag " + tag + ".");
+            }
+        }
+
+        private Object literal() {
+            int kind = readInt();
+
+            switch (kind) {
+                case NIL:
+                    return null;
+                case FALSE:
+                    return false;
+                case TRUE:
+                    return true;
+                case NUMBER:
+                    return readDouble();
+                case STRING:
+                    return readString();
+                case INTEGER:
+                    return readLong();
+                default:
+                    throw new IllegalArgumentException("Unknown literal kind " + kind + ".");
+            }
+        }
+
+        private String readString() {
+            int index = readInt();
+            if (index >= 0 && index < strings.size())
+                return strings.get(index);
+            if (index != strings.size())
+                throw new IllegalArgumentException("Unknown string " + index + ".");
+
+            int length = readInt();
+            if (length < 0 || length > buffer.remaining())
+                throw new BufferUnderflowException();
+
+            String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            strings.add(value);
+            return value;
+        }
+
+        private int readInt() {
+            int bits = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                byte b = buffer.get();
+                bits |= (b & 0x7f) << shift;
+                if (b >= 0)
+                    return (bits >>> 1) ^ -(bits & 1);
+            }
+
+            throw new IllegalArgumentException("Malformed number.");
+        }
+
+        private long readLong() {
+            long bits = 0;
+            for (int shift = 0; shift < 70; shift += 7) {
+                byte b = buffer.get();
+                bits |= (long) (b & 0x7f) << shift;
+                if (b >= 0)
+                    return (bits >>> 1) ^ -(bits & 1);
+            }
+
+            throw new IllegalArgumentException("Malformed number.");
+        }
+
+        private double readDouble() {
+            return Double.longBitsToDouble(buffer.getLong());
+        }
+    }
+}
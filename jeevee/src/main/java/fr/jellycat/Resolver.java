@@ -0,0 +1,427 @@
+package fr.jellycat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    // Depths that are not a count of frames: a variable of an enclosing function, which the closure holds in the Cell
+    // at that index of its captures, and a local some closure captures, which the frame holds in a Cell.
+    static final int CAPTURED = -2;
+    static final int CELL = -3;
+
+    // Runtime storage for locals. Nested scopes share their enclosing frame and hand their slots back when they end.
+    private static class Frame {
+        int size = 0;
+        int max = 0;
+    }
+
+    // The nodes naming a local are kept until its scope ends, to move them into a Cell if a closure captures it.
+    private static class Local {
+        final int slot;
+        final List<Object> uses = new ArrayList<>();
+        boolean captured = false;
+
+        Local(int slot) {
+            this.slot = slot;
+        }
+    }
+
+    private static class Scope {
+        final Map<String, Local> locals = new HashMap<>();
+        final int frame;
+        final int base;
+
+        Scope(int frame, int base) {
+            this.frame = frame;
+            this.base = base;
+        }
+    }
+
+    // A function being resolved. Its body starts at scopes.get(scopes), in a frame of its own, and each variable of
+    // an enclosing function it names is a capture: the slot of a Cell in the frame the closure is made in, or
+    // -1 - i for capture i of the closure making it.
+    private static class Function {
+        final Function enclosing;
+        final int scopes;
+        final List<Integer> captures = new ArrayList<>();
+        final Map<Local, Integer> captured = new IdentityHashMap<>();
+
+        Function(Function enclosing, int scopes) {
+            this.enclosing = enclosing;
+            this.scopes = scopes;
+        }
+    }
+
+    private final GlobalSlots globals;
+    private final List<Scope> scopes = new ArrayList<>();
+    private final List<Frame> frames = new ArrayList<>();
+    // Null in top-level code.
+    private Function function = null;
+
+    Resolver() {
+        this(new GlobalSlots());
+    }
+
+    Resolver(GlobalSlots globals) {
+        this.globals = globals;
+    }
+
+    void resolve(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            resolve(statement);
+        }
+    }
+
+    void resolve(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void resolve(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    // Returns the size of the frame the statements need, or 0 when they run in the enclosing one.
+    private int resolveScope(List<Stmt> statements) {
+        boolean root = beginFrame();
+        beginScope();
+        resolve(statements);
+        endScope();
+
+        return root ? endFrame() : 0;
+    }
+
+    // Only the outermost local construct opens a frame; everything nested inside it gets slots in that frame, so
+    // blocks and loop iterations never allocate their own.
+    private boolean beginFrame() {
+        if (!frames.isEmpty())
+            return false;
+
+        frames.add(new Frame());
+        return true;
+    }
+
+    private int endFrame() {
+        return frames.remove(frames.size() - 1).max;
+    }
+
+    private void beginScope() {
+        int frame = frames.size() - 1;
+        scopes.add(new Scope(frame, frames.get(frame).size));
+    }
+
+    private void endScope() {
+        Scope scope = scopes.remove(scopes.size() - 1);
+        frames.get(scope.frame).size = scope.base;
+    }
+
+    // Points a variable, an assignment or a declaration at the global or local of that name.
+    private void declare(Token name, Object declaration) {
+        if (scopes.isEmpty()) {
+            place(declaration, -1, globalSlot(name));
+            return;
+        }
+
+        use(declare(name), declaration);
+    }
+
+    private Local declare(Token name) {
+        Scope scope = scopes.get(scopes.size() - 1);
+        Local local = scope.locals.get(name.lexeme);
+
+        // Declaring the same name twice in a scope reuses its slot, like redefining it did.
+        if (local == null) {
+            Frame frame = frames.get(scope.frame);
+            local = new Local(frame.size++);
+            frame.max = Math.max(frame.max, frame.size);
+            scope.locals.put(name.lexeme, local);
+        }
+
+        return local;
+    }
+
+    // A slot no name refers to, for values the interpreter keeps in the frame.
+    private int reserve() {
+        Frame frame = frames.get(scopes.get(scopes.size() - 1).frame);
+        int slot = frame.size++;
+        frame.max = Math.max(frame.max, frame.size);
+        return slot;
+    }
+
+    private int globalSlot(Token name) {
+        return globals.slot(name.lexeme);
+    }
+
+    private void resolveName(Token name, Object use) {
+        Function owner = function;
+
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            while (owner != null && i < owner.scopes) {
+                owner = owner.enclosing;
+            }
+
+            Local local = scopes.get(i).locals.get(name.lexeme);
+            if (local == null)
+                continue;
+
+            if (owner == function) {
+                use(local, use);
+            } else {
+                place(use, CAPTURED, capture(function, local, owner));
+            }
+            return;
+        }
+
+        place(use, -1, globalSlot(name));
+    }
+
+    private void use(Local local, Object use) {
+        local.uses.add(use);
+        place(use, local.captured ? CELL : 0, local.slot);
+    }
+
+    // Returns the index of the local of owner in the captures of function, capturing it through every function in
+    // between.
+    private int capture(Function function, Local local, Function owner) {
+        Integer index = function.captured.get(local);
+        if (index != null)
+            return index;
+
+        int source;
+        if (function.enclosing == owner) {
+            source = local.slot;
+            if (!local.captured) {
+                local.captured = true;
+                for (Object use : local.uses) {
+                    place(use, CELL, local.slot);
+                }
+            }
+        } else {
+            source = -1 - capture(function.enclosing, local, owner);
+        }
+
+        index = function.captures.size();
+        function.captures.add(source);
+        function.captured.put(local, index);
+        return index;
+    }
+
+    private static void place(Object use, int depth, int slot) {
+        if (use instanceof Expr.Variable) {
+            ((Expr.Variable) use).depth = depth;
+            ((Expr.Variable) use).slot = slot;
+        } else if (use instanceof Expr.Assign) {
+            ((Expr.Assign) use).depth = depth;
+            ((Expr.Assign) use).slot = slot;
+        } else if (use instanceof Stmt.Var) {
+            ((Stmt.Var) use).depth = depth;
+            ((Stmt.Var) use).slot = slot;
+        } else if (use instanceof Stmt.Function) {
+            ((Stmt.Function) use).depth = depth;
+            ((Stmt.Function) use).slot = slot;
+        }
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        stmt.locals = resolveScope(stmt.statements);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        resolve(stmt.expression);
+        return null;
+    }
+
+    // Same scopes as the block the loop was desugared into, with the cached invariants next to the counter.
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        boolean root = beginFrame();
+        beginScope();
+
+        resolve(stmt.counter);
+        for (Expr.Invariant invariant : stmt.invariants) {
+            invariant.slot = reserve();
+        }
+        resolve(stmt.limit);
+        resolve(stmt.body);
+
+        endScope();
+        stmt.locals = root ? endFrame() : 0;
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        resolve(stmt.condition);
+        stmt.consequentLocals = resolveScope(stmt.consequent);
+        if (stmt.alternate != null) {
+            stmt.alternateLocals = resolveScope(stmt.alternate);
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        resolve(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        // The initializer still sees an outer variable of the same name.
+        if (stmt.initializer != null) {
+            resolve(stmt.initializer);
+        }
+
+        declare(stmt.name, stmt);
+        return null;
+    }
+
+    // The name is declared first, so the body can call the function.
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        declare(stmt.name, stmt);
+        resolve(stmt.function);
+        return null;
+    }
+
+    // A call whose value is returned as is runs in place of the function returning it.
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null) {
+            resolve(stmt.value);
+        }
+
+        stmt.tail = stmt.value instanceof Expr.Call;
+
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        boolean root = beginFrame();
+        resolve(stmt.condition);
+        resolve(stmt.body);
+        stmt.locals = root ? endFrame() : 0;
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        resolve(expr.value);
+        resolveName(expr.name, expr);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        resolve(expr.callee);
+        for (Expr argument : expr.arguments) {
+            resolve(argument);
+        }
+
+        return null;
+    }
+
+    // A function body runs in a frame of its own, whatever encloses it, with the parameters in its first slots.
+    @Override
+    public Void visitLambdaExpr(Expr.Lambda expr) {
+        Function enclosing = function;
+        function = new Function(enclosing, scopes.size());
+        frames.add(new Frame());
+        beginScope();
+
+        List<Local> params = new ArrayList<>();
+        for (Token param : expr.params) {
+            params.add(declare(param));
+        }
+
+        resolve(expr.body);
+
+        // The parameters a closure captures move into a Cell when the call starts.
+        List<Integer> cells = new ArrayList<>();
+        for (Local param : params) {
+            if (param.captured) {
+                cells.add(param.slot);
+            }
+        }
+
+        endScope();
+        expr.locals = endFrame();
+        expr.captures = toArray(function.captures);
+        expr.cells = toArray(cells);
+        function = enclosing;
+        return null;
+    }
+
+    @Override
+    public Void visitConditionalExpr(Expr.Conditional expr) {
+        resolve(expr.test);
+        resolve(expr.consequent);
+        resolve(expr.alternate);
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        resolve(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitInvariantExpr(Expr.Invariant expr) {
+        resolve(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitPostFixExpr(Expr.PostFix expr) {
+        resolve(expr.left);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        resolveName(expr.name, expr);
+        return null;
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        int[] array = new int[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+
+        return array;
+    }
+}
@@ -0,0 +1,85 @@
+package fr.jellycat;
+
+// The string a concatenation makes: the first 'length' characters of a builder that later concatenations may keep
+// appending to. Adding to the end of the newest string of a builder appends in place, so s = s + line in a loop
+// takes linear time; any other concatenation copies into a new builder. The String is only made once something
+// looks at the characters, like print or ==, and then kept.
+final class Rope implements CharSequence {
+    private final StringBuilder builder;
+    private final int length;
+    private String flat = null;
+
+    private Rope(StringBuilder builder, int length) {
+        this.builder = builder;
+        this.length = length;
+    }
+
+    static Rope concat(CharSequence left, CharSequence right) {
+        if (left instanceof Rope) {
+            Rope rope = (Rope) left;
+            // Nothing was appended after it yet, so the builder can grow for this string.
+            if (rope.builder.length() == rope.length) {
+                append(rope.builder, right);
+                return new Rope(rope.builder, rope.builder.length());
+            }
+        }
+
+        StringBuilder builder = new StringBuilder(left.length() + right.length() + 16);
+        append(builder, left);
+        append(builder, right);
+        return new Rope(builder, builder.length());
+    }
+
+    private static void append(StringBuilder builder, CharSequence value) {
+        if (value instanceof Rope) {
+            Rope rope = (Rope) value;
+            if (rope.flat != null) {
+                builder.append(rope.flat);
+            } else {
+                builder.append(rope.builder, 0, rope.length);
+            }
+        } else {
+            builder.append(value);
+        }
+    }
+
+    // The characters the concatenation making this rope from 'left' had to store: only the right operand when it
+    // appended in place.
+    int stored(Object left) {
+        if (left instanceof Rope && ((Rope) left).builder == builder)
+            return length - ((Rope) left).length;
+
+        return length;
+    }
+
+    // Strings and ropes with the same characters are the same value to scripts.
+    static Object flatten(Object value) {
+        return value instanceof Rope ? value.toString() : value;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index >= length)
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+        return builder.charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        if (flat == null) {
+            flat = builder.substring(0, length);
+        }
+
+        return flat;
+    }
+}
@@ -0,0 +1,149 @@
+package fr.jellycat;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// --runner: runs many jobs at once, each a script in a Context of its own on a thread of its own, virtual where the
+// JVM has them. Every script is compiled once, and its Program shared by all the jobs running it. What the jobs
+// print is dropped; the report is their latencies and the throughput of the whole batch.
+final class Runner {
+    private final List<String> scripts;
+    private final Program[] programs;
+    private final long[] latencies;
+    private final long fuel;
+    private final long memory;
+    private final AtomicInteger failures = new AtomicInteger();
+    private String threads;
+    private long wall;
+
+    private Runner(List<String> scripts, Program[] programs, int jobs, long fuel, long memory) {
+        this.scripts = scripts;
+        this.programs = programs;
+        this.latencies = new long[jobs];
+        this.fuel = fuel;
+        this.memory = memory;
+    }
+
+    // Returns the exit code: 65 when a script does not compile, 70 when a job stopped on a runtime error. Every job
+    // gets the same fuel and memory budget.
+    static int run(List<String> scripts, int jobs, int optLevel, long fuel, long memory, PrintStream report)
+            throws IOException {
+        Engine engine = new Engine(optLevel);
+        Program[] programs = new Program[scripts.size()];
+        boolean hadError = false;
+
+        for (int i = 0; i < programs.length; i++) {
+            byte[] source = Files.readAllBytes(Paths.get(scripts.get(i)));
+            programs[i] = engine.compile(scripts.get(i), new String(source, StandardCharsets.UTF_8));
+
+            for (Diagnostic diagnostic : programs[i].diagnostics()) {
+                System.err.println(scripts.get(i) + ": " + diagnostic);
+                hadError = true;
+            }
+        }
+
+        if (hadError)
+            return 65;
+
+        Runner runner = new Runner(scripts, programs, jobs, fuel, memory);
+        runner.runJobs();
+        runner.report(report);
+        return runner.failures.get() > 0 ? 70 : 0;
+    }
+
+    private void runJobs() {
+        ExecutorService executor = newExecutor();
+        long start = System.nanoTime();
+
+        try {
+            for (int i = 0; i < latencies.length; i++) {
+                int job = i;
+                executor.execute(() -> runJob(job));
+            }
+        } finally {
+            executor.shutdown();
+            awaitTermination(executor);
+        }
+
+        wall = System.nanoTime() - start;
+    }
+
+    // Jobs take the scripts in turn. Whatever else a job throws, from a bug or the JVM, fails it too, or the executor
+    // would swallow it and the report miss it.
+    private void runJob(int job) {
+        int script = job % programs.length;
+        long start = System.nanoTime();
+        Object failure;
+        try {
+            Context context = new Context(programs[script], line -> {
+            });
+            context.limitFuel(fuel);
+            context.limitMemory(memory);
+            Optional<Diagnostic> error = context.run();
+            failure = error.isPresent() ? error.get() : null;
+        } catch (Throwable error) {
+            failure = error;
+        }
+        latencies[job] = System.nanoTime() - start;
+
+        if (failure != null) {
+            failures.incrementAndGet();
+            System.err.println(scripts.get(script) + ": " + failure);
+        }
+    }
+
+    // Virtual threads came with Java 21, and the sources stay at Java 8, so they are looked up. Without them, a
+    // thread per core runs CPU-bound jobs about as well.
+    private ExecutorService newExecutor() {
+        try {
+            ExecutorService executor = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            threads = "virtual";
+            return executor;
+        } catch (ReflectiveOperationException e) {
+            int cores = Runtime.getRuntime().availableProcessors();
+            threads = cores + " platform";
+            return Executors.newFixedThreadPool(cores);
+        }
+    }
+
+    private static void awaitTermination(ExecutorService executor) {
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for jobs.", e);
+        }
+    }
+
+    private void report(PrintStream out) {
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+
+        out.printf(Locale.ROOT, "jobs        %d of %d scripts, %d failed%n", sorted.length, programs.length,
+                failures.get());
+        out.printf(Locale.ROOT, "threads     %s%n", threads);
+        out.printf(Locale.ROOT, "wall        %.1f ms%n", wall / 1e6);
+        out.printf(Locale.ROOT, "throughput  %.1f jobs/s%n", sorted.length / (wall / 1e9));
+        out.printf(Locale.ROOT, "latency     p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, max %.3f ms%n",
+                percentile(sorted, 50) / 1e6, percentile(sorted, 90) / 1e6, percentile(sorted, 99) / 1e6,
+                sorted[sorted.length - 1] / 1e6);
+    }
+
+    // Nearest rank.
+    static long percentile(long[] sorted, int percent) {
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+}
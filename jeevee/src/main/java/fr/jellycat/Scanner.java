@@ -1,33 +1,114 @@
 package fr.jellycat;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
 import static fr.jellycat.TokenType.*;
 
+// Reads the source through a window that only keeps the text of the tokens the parser has not released yet, so the
+// whole program never has to sit in memory as one string. Offsets are still counted from the start of the source.
 class Scanner {
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>();
+    private static final int CHUNK = 8192;
+
+    private final Reader reader;
+    private char[] buffer = new char[CHUNK];
+    // Source offset of buffer[0], and how many characters the buffer holds.
+    private int offset = 0;
+    private int length = 0;
+    private boolean drained = false;
+    private final TokenBuffer tokens = new TokenBuffer();
+    // Errors of the scanner and of the parser reading from it, in the order they were found.
+    private final List<Diagnostic> diagnostics = new ArrayList<>();
 
     private int start = 0;
     private int current = 0;
     private int line = 1;
 
     Scanner(String source) {
-        this.source = source;
+        this(new StringReader(source));
+    }
+
+    Scanner(Reader reader) {
+        this.reader = reader;
+    }
+
+    // Decodes the bytes as they are scanned, so a memory-mapped file is never copied to the heap as a whole.
+    Scanner(ByteBuffer bytes, Charset charset) {
+        this(new ByteBufferReader(bytes, charset));
     }
 
     List<Token> scanTokens() {
-        while (!isAtEnd()) {
-            // Beginning of the next lexeme.
-            start = current;
-            scanToken();
+        List<Token> tokens = new ArrayList<>();
+
+        for (int index = 0;; index++) {
+            tokens.add(token(index));
+            if (type(index) == EOF)
+                return tokens;
+        }
+    }
+
+    void report(Diagnostic diagnostic) {
+        diagnostics.add(diagnostic);
+    }
+
+    List<Diagnostic> diagnostics() {
+        return diagnostics;
+    }
+
+    // Tokens are scanned on demand, and past the end of the source every index is EOF.
+    TokenType type(int index) {
+        scanTo(index);
+        return tokens.type(index);
+    }
+
+    // Only tokens the parser keeps are turned into objects.
+    Token token(int index) {
+        scanTo(index);
+
+        TokenType type = tokens.type(index);
+        int from = tokens.start(index);
+        int to = from + tokens.length(index);
+        Object literal = null;
+
+        if (type == NUMBER) {
+            literal = tokens.number(index);
+        } else if (type == STRING) {
+            literal = text(from + 1, to - 1);
         }
 
-        tokens.add(new Token(EOF, "", null, line, current));
-        return tokens;
+        return new Token(type, text(from, to), literal, tokens.line(index), to);
+    }
+
+    // The parser is done with the tokens before index; their text can go.
+    void release(int index) {
+        tokens.release(index);
+    }
+
+    private void scanTo(int index) {
+        while (tokens.end() <= index) {
+            int end = tokens.end();
+
+            while (tokens.end() == end) {
+                if (isAtEnd()) {
+                    tokens.add(EOF, current, 0, line, 0);
+                    break;
+                }
+
+                // Beginning of the next lexeme.
+                start = current;
+                scanToken();
+            }
+        }
     }
 
     private void scanToken() {
@@ -135,7 +216,7 @@ class Scanner {
                 } else if (isAlpha(c)) {
                     identifier();
                 } else {
-                    Jeevee.error(line, start, "Unexpected character.");
+                    report(Diagnostic.syntax(line, start, "Unexpected character."));
                 }
                 break;
         }
@@ -145,13 +226,7 @@ class Scanner {
         while (isAlphaNumeric(peek()))
             advance();
 
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-
-        if (type == null)
-            type = IDENTIFIER;
-
-        addToken(type);
+        addToken(keyword());
     }
 
     private void number() {
@@ -167,7 +242,7 @@ class Scanner {
                 advance();
         }
 
-        addToken(NUMBER, Double.parseDouble(source.substring(start, current)));
+        addToken(NUMBER, number(start, current));
     }
 
     private void string() {
@@ -178,22 +253,21 @@ class Scanner {
         }
 
         if (isAtEnd()) {
-            Jeevee.error(line, start, "Unterminated string.");
+            report(Diagnostic.syntax(line, start, "Unterminated string."));
             return;
         }
 
         // The closing ".
         advance();
 
-        // Trim the surrounding quotes.
-        String value = source.substring(start + 1, current - 1);
-        addToken(STRING, value);
+        // The value, without the quotes, is read back from the source when the token is needed.
+        addToken(STRING);
     }
 
     private boolean match(char expected) {
         if (isAtEnd())
             return false;
-        if (source.charAt(current) != expected)
+        if (charAt(current) != expected)
             return false;
 
         current++;
@@ -203,13 +277,13 @@ class Scanner {
     private char peek() {
         if (isAtEnd())
             return '\0';
-        return source.charAt(current);
+        return charAt(current);
     }
 
     private char peekNext() {
-        if (current + 1 >= source.length())
+        if (!fill(current + 1))
             return '\0';
-        return source.charAt(current + 1);
+        return charAt(current + 1);
     }
 
     private boolean isAlpha(char c) {
@@ -225,46 +299,153 @@ class Scanner {
     }
 
     private boolean isAtEnd() {
-        return current >= source.length();
+        return !fill(current);
     }
 
     private char advance() {
-        return source.charAt(current++);
+        if (isAtEnd())
+            return '\0';
+        return charAt(current++);
+    }
+
+    private char charAt(int position) {
+        return buffer[position - offset];
+    }
+
+    private String text(int from, int to) {
+        return new String(buffer, from - offset, to - from);
+    }
+
+    // Makes sure the window reaches the given source offset. Returns false past the end of the source.
+    private boolean fill(int position) {
+        while (position >= offset + length) {
+            if (drained)
+                return false;
+
+            // Keep the text of the lexeme being scanned and of the tokens the parser may still ask for.
+            int keep = tokens.isEmpty() ? start : Math.min(start, tokens.firstStart());
+            int consumed = keep - offset;
+            System.arraycopy(buffer, consumed, buffer, 0, length - consumed);
+            offset = keep;
+            length -= consumed;
+
+            if (buffer.length - length < CHUNK / 2) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+
+            int read;
+            try {
+                read = reader.read(buffer, length, buffer.length - length);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            if (read == -1) {
+                drained = true;
+            } else {
+                length += read;
+            }
+        }
+
+        return true;
     }
 
     private void addToken(TokenType type) {
-        addToken(type, null);
+        addToken(type, 0);
     }
 
-    private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line, current));
+    private void addToken(TokenType type, double number) {
+        tokens.add(type, start, current - start, line, number);
     }
 
-    private static final Map<String, TokenType> keywords;
-
-    static {
-        keywords = new HashMap<>();
-        keywords.put("and", AND);
-        keywords.put("class", CLASS);
-        keywords.put("def", DEF);
-        keywords.put("do", DO);
-        keywords.put("else", ELSE);
-        keywords.put("end", END);
-        keywords.put("false", FALSE);
-        keywords.put("for", FOR);
-        keywords.put("if", IF);
-        keywords.put("lambda", LAMBDA);
-        keywords.put("let", LET);
-        keywords.put("match", MATCH);
-        keywords.put("nil", NIL);
-        keywords.put("or", OR);
-        keywords.put("print", PRINT);
-        keywords.put("return", RETURN);
-        keywords.put("self", SELF);
-        keywords.put("super", SUPER);
-        keywords.put("then", THEN);
-        keywords.put("true", TRUE);
-        keywords.put("while", WHILE);
+    private TokenType keyword() {
+        int length = current - start;
+
+        for (int i = 0; i < KEYWORDS.length; i++) {
+            if (KEYWORDS[i].length() == length && lexemeEquals(KEYWORDS[i])) {
+                return KEYWORD_TYPES[i];
+            }
+        }
+
+        return IDENTIFIER;
+    }
+
+    private boolean lexemeEquals(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (charAt(start + i) != text.charAt(i))
+                return false;
+        }
+
+        return true;
+    }
+
+    // Exact without building a string as long as the digits fit in a double's mantissa and the power of ten is
+    // exact too: one correctly rounded division then gives what Double.parseDouble would.
+    private double number(int from, int to) {
+        long mantissa = 0;
+        int scale = 0;
+        boolean fraction = false;
+
+        for (int i = from; i < to; i++) {
+            char c = charAt(i);
+            if (c == '.') {
+                fraction = true;
+                continue;
+            }
+
+            mantissa = mantissa * 10 + (c - '0');
+            if (fraction)
+                scale++;
+            if (mantissa >= 1L << 53 || scale >= POWERS_OF_TEN.length)
+                return Double.parseDouble(text(from, to));
+        }
+
+        return mantissa / POWERS_OF_TEN[scale];
+    }
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+    private static final String[] KEYWORDS = {
+            "and", "class", "def", "do", "else", "end", "false", "for", "if", "lambda", "let",
+            "match", "nil", "or", "print", "return", "self", "super", "then", "true", "while" };
+
+    private static final TokenType[] KEYWORD_TYPES = {
+            AND, CLASS, DEF, DO, ELSE, END, FALSE, FOR, IF, LAMBDA, LET,
+            MATCH, NIL, OR, PRINT, RETURN, SELF, SUPER, THEN, TRUE, WHILE };
+
+    private static class ByteBufferReader extends Reader {
+        private final ByteBuffer bytes;
+        private final CharsetDecoder decoder;
+        private boolean flushed = false;
+
+        ByteBufferReader(ByteBuffer bytes, Charset charset) {
+            this.bytes = bytes;
+            // Same replacement of malformed input as new String(bytes, charset).
+            this.decoder = charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+
+        @Override
+        public int read(char[] chars, int off, int len) {
+            if (flushed)
+                return -1;
+
+            CharBuffer out = CharBuffer.wrap(chars, off, len);
+            decoder.decode(bytes, out, true);
+
+            if (!bytes.hasRemaining() && !decoder.flush(out).isOverflow()) {
+                flushed = true;
+            }
+
+            int read = out.position() - off;
+            return read == 0 && flushed ? -1 : read;
+        }
+
+        @Override
+        public void close() {
+        }
     }
 }
@@ -6,8 +6,11 @@ abstract class Stmt {
     interface Visitor<R> {
         R visitBlockStmt(Block stmt);
         R visitExpressionStmt(Expression stmt);
+        R visitFunctionStmt(Function stmt);
+        R visitForStmt(For stmt);
         R visitIfStmt(If stmt);
         R visitPrintStmt(Print stmt);
+        R visitReturnStmt(Return stmt);
         R visitVarStmt(Var stmt);
         R visitWhileStmt(While stmt);
     }
@@ -23,6 +26,8 @@ abstract class Stmt {
         }
 
         final List<Stmt> statements;
+
+        int locals;
     }
 
     static class Expression extends Stmt {
@@ -38,6 +43,51 @@ abstract class Stmt {
         final Expr expression;
     }
 
+    static class Function extends Stmt {
+        Function(Token name, Expr.Lambda function) {
+            this.name = name;
+            this.function = function;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitFunctionStmt(this);
+        }
+
+        final Token name;
+        final Expr.Lambda function;
+
+        int depth = -1;
+        int slot = -1;
+    }
+
+    static class For extends Stmt {
+        For(Stmt.Var counter, Token operator, Expr limit, double step, Stmt body, List<Expr.Invariant> invariants) {
+            this.counter = counter;
+            this.operator = operator;
+            this.limit = limit;
+            this.step = step;
+            this.body = body;
+            this.invariants = invariants;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitForStmt(this);
+        }
+
+        final Stmt.Var counter;
+        final Token operator;
+        final Expr limit;
+        final double step;
+        final Stmt body;
+        final List<Expr.Invariant> invariants;
+
+        int locals;
+        int backEdges;
+        CompiledLoop compiled;
+    }
+
     static class If extends Stmt {
         If(Expr condition, List<Stmt> consequent, List<Stmt> alternate) {
             this.condition = condition;
@@ -53,6 +103,9 @@ abstract class Stmt {
         final Expr condition;
         final List<Stmt> consequent;
         final List<Stmt> alternate;
+
+        int consequentLocals;
+        int alternateLocals;
     }
 
     static class Print extends Stmt {
@@ -68,6 +121,23 @@ abstract class Stmt {
         final Expr expression;
     }
 
+    static class Return extends Stmt {
+        Return(Token keyword, Expr value) {
+            this.keyword = keyword;
+            this.value = value;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitReturnStmt(this);
+        }
+
+        final Token keyword;
+        final Expr value;
+
+        boolean tail;
+    }
+
     static class Var extends Stmt {
         Var(Token name, Expr initializer) {
             this.name = name;
@@ -81,10 +151,14 @@ abstract class Stmt {
 
         final Token name;
         final Expr initializer;
+
+        int depth = -1;
+        int slot = -1;
     }
 
     static class While extends Stmt {
-        While(Expr condition, Stmt body) {
+        While(Token keyword, Expr condition, Stmt body) {
+            this.keyword = keyword;
             this.condition = condition;
             this.body = body;
         }
@@ -94,8 +168,13 @@ abstract class Stmt {
             return visitor.visitWhileStmt(this);
         }
 
+        final Token keyword;
         final Expr condition;
         final Stmt body;
+
+        int locals;
+        int backEdges;
+        CompiledLoop compiled;
     }
 
 
@@ -0,0 +1,100 @@
+package fr.jellycat;
+
+// The tokens between the parser's position and the scanner's, one parallel array per field instead of one object
+// per token. Indexes count tokens from the start of the source; released tokens make room for new ones.
+final class TokenBuffer {
+    private TokenType[] types = new TokenType[16];
+    private int[] starts = new int[16];
+    private int[] lengths = new int[16];
+    private int[] lines = new int[16];
+    // Value of number literals; strings are read back from the source.
+    private double[] numbers = new double[16];
+
+    // Index of the oldest token kept, and how many are kept. Slots wrap around the arrays.
+    private int first = 0;
+    private int count = 0;
+
+    int end() {
+        return first + count;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    void add(TokenType type, int start, int length, int line, double number) {
+        if (count == types.length) {
+            grow();
+        }
+
+        int slot = slot(first + count);
+        types[slot] = type;
+        starts[slot] = start;
+        lengths[slot] = length;
+        lines[slot] = line;
+        numbers[slot] = number;
+        count++;
+    }
+
+    // Tokens before index will not be asked for again.
+    void release(int index) {
+        while (count > 0 && first < index) {
+            types[slot(first)] = null;
+            first++;
+            count--;
+        }
+    }
+
+    TokenType type(int index) {
+        return types[slot(index)];
+    }
+
+    int start(int index) {
+        return starts[slot(index)];
+    }
+
+    int length(int index) {
+        return lengths[slot(index)];
+    }
+
+    int line(int index) {
+        return lines[slot(index)];
+    }
+
+    double number(int index) {
+        return numbers[slot(index)];
+    }
+
+    int firstStart() {
+        return starts[slot(first)];
+    }
+
+    private int slot(int index) {
+        return index & (types.length - 1);
+    }
+
+    private void grow() {
+        int size = types.length * 2;
+        TokenType[] newTypes = new TokenType[size];
+        int[] newStarts = new int[size];
+        int[] newLengths = new int[size];
+        int[] newLines = new int[size];
+        double[] newNumbers = new double[size];
+
+        for (int index = first; index < first + count; index++) {
+            int from = slot(index);
+            int to = index & (size - 1);
+            newTypes[to] = types[from];
+            newStarts[to] = starts[from];
+            newLengths[to] = lengths[from];
+            newLines[to] = lines[from];
+            newNumbers[to] = numbers[from];
+        }
+
+        types = newTypes;
+        starts = newStarts;
+        lengths = newLengths;
+        lines = newLines;
+        numbers = newNumbers;
+    }
+}
@@ -0,0 +1,12 @@
+package fr.jellycat;
+
+// Thrown by the unboxed evaluation path when an expression did not produce a number. It carries the value that was
+// computed instead, so the caller can carry on without evaluating anything twice.
+class UnexpectedResultException extends Exception {
+    final Object result;
+
+    UnexpectedResultException(Object result) {
+        super(null, null, false, false);
+        this.result = result;
+    }
+}
@@ -0,0 +1,366 @@
+package fr.jellycat.jit;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Bytecode of one method. Tracks the operand stack height and the locals in use, so the caller never has to
+// compute max_stack or max_locals itself.
+public final class Code {
+    public static final class Label {
+        private int position = -1;
+        private int height = -1;
+        private final List<int[]> fixups = new ArrayList<>();
+    }
+
+    private static final int ICONST_0 = 0x03;
+    private static final int DCONST_0 = 0x0e;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int LDC2_W = 0x14;
+    private static final int ILOAD = 0x15;
+    private static final int DLOAD = 0x18;
+    private static final int ALOAD = 0x19;
+    private static final int DALOAD = 0x31;
+    private static final int AALOAD = 0x32;
+    private static final int ISTORE = 0x36;
+    private static final int DSTORE = 0x39;
+    private static final int DASTORE = 0x52;
+    private static final int POP = 0x57;
+    private static final int POP2 = 0x58;
+    private static final int DUP2 = 0x5c;
+    private static final int DADD = 0x63;
+    private static final int DSUB = 0x67;
+    private static final int DMUL = 0x6b;
+    private static final int DDIV = 0x6f;
+    private static final int DREM = 0x73;
+    private static final int DNEG = 0x77;
+    private static final int IINC = 0x84;
+    private static final int LCMP = 0x94;
+    private static final int DCMPL = 0x97;
+    private static final int DCMPG = 0x98;
+    private static final int GOTO = 0xa7;
+    private static final int RETURN = 0xb1;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+    private static final int ATHROW = 0xbf;
+
+    public static final int IFEQ = 0x99;
+    public static final int IFNE = 0x9a;
+    public static final int IFLT = 0x9b;
+    public static final int IFGE = 0x9c;
+    public static final int IFGT = 0x9d;
+    public static final int IFLE = 0x9e;
+
+    private final ClassWriter owner;
+    private final int access;
+    private final int name;
+    private final int descriptor;
+
+    private byte[] code = new byte[256];
+    private int length = 0;
+    private int stack = 0;
+    private int maxStack = 0;
+    private int maxLocals;
+    private final List<int[]> handlers = new ArrayList<>();
+
+    Code(ClassWriter owner, int access, int name, int descriptor, int argumentSlots) {
+        this.owner = owner;
+        this.access = access;
+        this.name = name;
+        this.descriptor = descriptor;
+        this.maxLocals = argumentSlots;
+    }
+
+    public void pushInt(int value) {
+        if (value >= -1 && value <= 5) {
+            op(ICONST_0 + value, 1);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            op(BIPUSH, 1);
+            u1(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            op(SIPUSH, 1);
+            u2(value);
+        } else {
+            op(LDC_W, 1);
+            u2(owner.integer(value));
+        }
+    }
+
+    public void pushDouble(double value) {
+        if (Double.doubleToRawLongBits(value) == 0L) {
+            op(DCONST_0, 2);
+        } else if (value == 1.0) {
+            op(DCONST_0 + 1, 2);
+        } else {
+            op(LDC2_W, 2);
+            u2(owner.doubleConstant(value));
+        }
+    }
+
+    public void iload(int local) {
+        local(ILOAD, local, 1, 1);
+    }
+
+    public void istore(int local) {
+        local(ISTORE, local, -1, 1);
+    }
+
+    public void dload(int local) {
+        local(DLOAD, local, 2, 2);
+    }
+
+    public void dstore(int local) {
+        local(DSTORE, local, -2, 2);
+    }
+
+    public void iinc(int local, int delta) {
+        if (local > 0xff || delta < Byte.MIN_VALUE || delta > Byte.MAX_VALUE)
+            throw new CodeTooLargeException("Increment out of range.");
+
+        maxLocals = Math.max(maxLocals, local + 1);
+        op(IINC, 0);
+        u1(local);
+        u1(delta);
+    }
+
+    public void aload(int local) {
+        local(ALOAD, local, 1, 1);
+    }
+
+    public void daload() {
+        op(DALOAD, 0);
+    }
+
+    public void dastore() {
+        op(DASTORE, -4);
+    }
+
+    public void aaload() {
+        op(AALOAD, -1);
+    }
+
+    public void pop() {
+        op(POP, -1);
+    }
+
+    public void pop2() {
+        op(POP2, -2);
+    }
+
+    public void dup2() {
+        op(DUP2, 2);
+    }
+
+    public void dadd() {
+        op(DADD, -2);
+    }
+
+    public void dsub() {
+        op(DSUB, -2);
+    }
+
+    public void dmul() {
+        op(DMUL, -2);
+    }
+
+    public void ddiv() {
+        op(DDIV, -2);
+    }
+
+    public void drem() {
+        op(DREM, -2);
+    }
+
+    public void dneg() {
+        op(DNEG, 0);
+    }
+
+    public void lcmp() {
+        op(LCMP, -3);
+    }
+
+    public void dcmpl() {
+        op(DCMPL, -3);
+    }
+
+    public void dcmpg() {
+        op(DCMPG, -3);
+    }
+
+    public void athrow() {
+        op(ATHROW, -1);
+        stack = -1;
+    }
+
+    public void returnVoid() {
+        op(RETURN, 0);
+        stack = -1;
+    }
+
+    public void invokeStatic(String className, String methodName, String methodDescriptor) {
+        op(INVOKESTATIC, stackEffect(methodDescriptor, false));
+        u2(owner.methodRef(className, methodName, methodDescriptor));
+    }
+
+    public void invokeSpecial(String className, String methodName, String methodDescriptor) {
+        op(INVOKESPECIAL, stackEffect(methodDescriptor, true));
+        u2(owner.methodRef(className, methodName, methodDescriptor));
+    }
+
+    // One of the IF* opcodes, comparing the int on top of the stack against zero.
+    public void jump(int opcode, Label target) {
+        op(opcode, -1);
+        branch(target);
+    }
+
+    public void jump(Label target) {
+        op(GOTO, 0);
+        branch(target);
+        stack = -1;
+    }
+
+    public void mark(Label label) {
+        label.position = length;
+
+        // Code right after an unconditional jump is only reached through this label.
+        if (stack == -1) {
+            stack = Math.max(label.height, 0);
+        } else if (label.height == -1) {
+            label.height = stack;
+        }
+
+        for (int[] fixup : label.fixups) {
+            patch(fixup[0], fixup[1], label.position);
+        }
+        label.fixups.clear();
+    }
+
+    // Catches anything thrown between start and end; the handler starts with the exception on the stack.
+    public void handler(Label start, Label end, Label handler) {
+        handlers.add(new int[] { start.position, end.position, length });
+        handler.height = 1;
+        stack = -1;
+        mark(handler);
+        maxStack = Math.max(maxStack, stack);
+    }
+
+    public int length() {
+        return length;
+    }
+
+    void write(DataOutputStream out, int codeName) throws IOException {
+        if (length > 0xffff) {
+            throw new CodeTooLargeException("Method too large.");
+        }
+
+        out.writeShort(access);
+        out.writeShort(name);
+        out.writeShort(descriptor);
+        out.writeShort(1);
+
+        out.writeShort(codeName);
+        out.writeInt(12 + length + handlers.size() * 8);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(length);
+        out.write(code, 0, length);
+        out.writeShort(handlers.size());
+        for (int[] handler : handlers) {
+            out.writeShort(handler[0]);
+            out.writeShort(handler[1]);
+            out.writeShort(handler[2]);
+            out.writeShort(0);
+        }
+        out.writeShort(0); // attributes
+    }
+
+    private void local(int opcode, int local, int effect, int size) {
+        maxLocals = Math.max(maxLocals, local + size);
+
+        if (local <= 3) {
+            // The xLOAD_n / xSTORE_n short forms follow each other in the same order as the long forms.
+            int base = opcode < ISTORE ? 0x1a + (opcode - ILOAD) * 4 : 0x3b + (opcode - ISTORE) * 4;
+            op(base + local, effect);
+        } else if (local <= 0xff) {
+            op(opcode, effect);
+            u1(local);
+        } else {
+            throw new CodeTooLargeException("Too many locals.");
+        }
+    }
+
+    private void branch(Label target) {
+        int instruction = length - 1;
+        if (target.position >= 0) {
+            u2(0);
+            patch(instruction, length - 2, target.position);
+        } else {
+            target.fixups.add(new int[] { instruction, length });
+            u2(0);
+        }
+
+        if (target.height == -1) {
+            target.height = stack;
+        }
+    }
+
+    private void patch(int instruction, int operand, int target) {
+        int offset = target - instruction;
+        if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+            throw new CodeTooLargeException("Jump too far.");
+        }
+
+        code[operand] = (byte) (offset >> 8);
+        code[operand + 1] = (byte) offset;
+    }
+
+    private void op(int opcode, int effect) {
+        u1(opcode);
+        stack += effect;
+        maxStack = Math.max(maxStack, stack);
+    }
+
+    private void u1(int value) {
+        if (length == code.length) {
+            code = Arrays.copyOf(code, length * 2);
+        }
+
+        code[length++] = (byte) value;
+    }
+
+    private void u2(int value) {
+        u1(value >> 8);
+        u1(value);
+    }
+
+    private static int stackEffect(String descriptor, boolean receiver) {
+        int effect = receiver ? -1 : 0;
+        int i = 1;
+
+        while (descriptor.charAt(i) != ')') {
+            char c = descriptor.charAt(i);
+            effect -= (c == 'D' || c == 'J') ? 2 : 1;
+
+            while (descriptor.charAt(i) == '[') {
+                i++;
+            }
+            if (descriptor.charAt(i) == 'L') {
+                i = descriptor.indexOf(';', i);
+            }
+            i++;
+        }
+
+        char result = descriptor.charAt(i + 1);
+        if (result == 'D' || result == 'J') {
+            effect += 2;
+        } else if (result != 'V') {
+            effect += 1;
+        }
+
+        return effect;
+    }
+}
@@ -0,0 +1,7 @@
+package fr.jellycat.jit;
+
+public class CodeTooLargeException extends RuntimeException {
+    CodeTooLargeException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,100 @@
+package fr.jellycat.script;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Function;
+
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+import fr.jellycat.Context;
+import fr.jellycat.Diagnostic;
+import fr.jellycat.Program;
+
+// A script parsed once, evaluated against any ScriptContext. Each evaluation runs the program in a fresh Context:
+// the globals are read from the bindings before it runs, and written back after.
+final class JeeveeCompiledScript extends CompiledScript {
+    private static final String NEWLINE = System.lineSeparator();
+
+    private final JeeveeScriptEngine engine;
+    private final Program program;
+
+    JeeveeCompiledScript(JeeveeScriptEngine engine, Program program) {
+        this.engine = engine;
+        this.program = program;
+    }
+
+    // Scripts are statements, so there is no value to return: results are read from the bindings.
+    @Override
+    public Object eval(ScriptContext scriptContext) throws ScriptException {
+        run(scriptContext, Context::run);
+        return null;
+    }
+
+    // Runs the program, then whatever else the action does in its context, with the globals read from the bindings
+    // before and written back after. Every global of the engine goes through, as functions other scripts defined may
+    // use them.
+    Context run(ScriptContext scriptContext, Function<Context, Optional<Diagnostic>> action) throws ScriptException {
+        Writer writer = scriptContext.getWriter();
+        Context context = new Context(program, line -> print(writer, line));
+        Set<String> globals = program.globals();
+
+        Optional<Diagnostic> error;
+        try {
+            for (String name : globals) {
+                int scope = scriptContext.getAttributesScope(name);
+                if (scope != -1) {
+                    context.set(name, scriptContext.getAttribute(name, scope));
+                }
+            }
+
+            error = action.apply(context);
+            writer.flush();
+        } catch (IllegalArgumentException e) {
+            throw new ScriptException(e.getMessage());
+        } catch (UncheckedIOException e) {
+            throw new ScriptException(e.getCause());
+        } catch (IOException e) {
+            throw new ScriptException(e);
+        }
+
+        // Globals go back to the scope they came from, and new ones to the engine's.
+        for (String name : globals) {
+            if (!context.isDefined(name))
+                continue;
+
+            int scope = scriptContext.getAttributesScope(name);
+            scriptContext.setAttribute(name, context.get(name), scope == -1 ? ScriptContext.ENGINE_SCOPE : scope);
+        }
+
+        if (error.isPresent())
+            throw exception(error.get(), scriptContext);
+
+        return context;
+    }
+
+    @Override
+    public ScriptEngine getEngine() {
+        return engine;
+    }
+
+    static ScriptException exception(Diagnostic diagnostic, ScriptContext scriptContext) {
+        Object file = scriptContext.getAttribute(ScriptEngine.FILENAME);
+        return new ScriptException(diagnostic.message(), file == null ? null : file.toString(), diagnostic.line(),
+                diagnostic.column());
+    }
+
+    private static void print(Writer writer, String line) {
+        try {
+            writer.write(line);
+            writer.write(NEWLINE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
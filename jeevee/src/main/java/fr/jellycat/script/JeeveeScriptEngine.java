@@ -0,0 +1,140 @@
+package fr.jellycat.script;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+
+import javax.script.AbstractScriptEngine;
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.Invocable;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+
+import fr.jellycat.Context;
+import fr.jellycat.Engine;
+import fr.jellycat.Program;
+
+// jeevee behind javax.script. Globals live in the bindings between evaluations; compile() parses a script once so
+// it can be evaluated again without scanning it each time, and the functions a script defined can be invoked from
+// Java. Scripts have no objects, so there are no methods to invoke.
+public final class JeeveeScriptEngine extends AbstractScriptEngine implements Compilable, Invocable {
+    private final JeeveeScriptEngineFactory factory;
+    private final Engine engine = new Engine();
+    // Functions are called in contexts of this empty program.
+    private final JeeveeCompiledScript calls = new JeeveeCompiledScript(this, engine.compile(""));
+
+    JeeveeScriptEngine(JeeveeScriptEngineFactory factory) {
+        this.factory = factory;
+    }
+
+    @Override
+    public Object eval(String script, ScriptContext context) throws ScriptException {
+        return compile(script, context).eval(context);
+    }
+
+    @Override
+    public Object eval(Reader reader, ScriptContext context) throws ScriptException {
+        return eval(read(reader), context);
+    }
+
+    @Override
+    public CompiledScript compile(String script) throws ScriptException {
+        return compile(script, getContext());
+    }
+
+    @Override
+    public CompiledScript compile(Reader script) throws ScriptException {
+        return compile(read(script));
+    }
+
+    // The context only names the file, in syntax errors and in the parse times of Metrics.
+    private JeeveeCompiledScript compile(String script, ScriptContext context) throws ScriptException {
+        Object file = context.getAttribute(ScriptEngine.FILENAME);
+        Program program = engine.compile(file == null ? "<script>" : file.toString(), script);
+        if (program.hasErrors())
+            throw JeeveeCompiledScript.exception(program.diagnostics().get(0), context);
+
+        return new JeeveeCompiledScript(this, program);
+    }
+
+    // The function is looked up in the engine's context, and runs against its bindings, like an evaluation.
+    @Override
+    public Object invokeFunction(String name, Object... args) throws ScriptException, NoSuchMethodException {
+        ScriptContext context = getContext();
+        Object function = context.getAttribute(name);
+        if (!Context.isFunction(function))
+            throw new NoSuchMethodException("No function named '" + name + "'.");
+
+        return calls.run(context, c -> c.call(function, args)).result();
+    }
+
+    @Override
+    public Object invokeMethod(Object thiz, String name, Object... args) {
+        throw new IllegalArgumentException("Scripts have no objects.");
+    }
+
+    // Null unless the engine's context has a function for each abstract method of the interface.
+    @Override
+    public <T> T getInterface(Class<T> type) {
+        if (type == null || !type.isInterface())
+            throw new IllegalArgumentException("Not an interface: " + type + ".");
+
+        for (Method method : type.getMethods()) {
+            if (Modifier.isAbstract(method.getModifiers())
+                    && !Context.isFunction(getContext().getAttribute(method.getName())))
+                return null;
+        }
+
+        Object proxy = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, (self, method, args) -> {
+            if (method.getDeclaringClass() != Object.class)
+                return invokeFunction(method.getName(), args == null ? new Object[0] : args);
+
+            switch (method.getName()) {
+                case "equals":
+                    return self == args[0];
+                case "hashCode":
+                    return System.identityHashCode(self);
+                default:
+                    return type.getName() + " of " + getFactory().getEngineName();
+            }
+        });
+        return type.cast(proxy);
+    }
+
+    @Override
+    public <T> T getInterface(Object thiz, Class<T> type) {
+        throw new IllegalArgumentException("Scripts have no objects.");
+    }
+
+    @Override
+    public Bindings createBindings() {
+        return new SimpleBindings();
+    }
+
+    @Override
+    public ScriptEngineFactory getFactory() {
+        return factory;
+    }
+
+    private static String read(Reader reader) throws ScriptException {
+        StringBuilder script = new StringBuilder();
+        char[] buffer = new char[8192];
+
+        try {
+            for (int n; (n = reader.read(buffer)) != -1;) {
+                script.append(buffer, 0, n);
+            }
+        } catch (IOException e) {
+            throw new ScriptException(e);
+        }
+
+        return script.toString();
+    }
+}
@@ -0,0 +1,99 @@
+package fr.jellycat.script;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+
+// Found by ScriptEngineManager through META-INF/services, by the name jeevee or eve, or the .eve extension.
+public final class JeeveeScriptEngineFactory implements ScriptEngineFactory {
+    private static final String VERSION = "0.1";
+
+    @Override
+    public String getEngineName() {
+        return "jeevee";
+    }
+
+    @Override
+    public String getEngineVersion() {
+        return VERSION;
+    }
+
+    @Override
+    public List<String> getExtensions() {
+        return Collections.singletonList("eve");
+    }
+
+    @Override
+    public List<String> getMimeTypes() {
+        return Collections.singletonList("text/x-jeevee");
+    }
+
+    @Override
+    public List<String> getNames() {
+        return Arrays.asList("jeevee", "eve");
+    }
+
+    @Override
+    public String getLanguageName() {
+        return "jeevee";
+    }
+
+    @Override
+    public String getLanguageVersion() {
+        return VERSION;
+    }
+
+    @Override
+    public Object getParameter(String key) {
+        switch (key) {
+            case ScriptEngine.ENGINE:
+                return getEngineName();
+            case ScriptEngine.ENGINE_VERSION:
+                return getEngineVersion();
+            case ScriptEngine.NAME:
+                return getNames().get(0);
+            case ScriptEngine.LANGUAGE:
+                return getLanguageName();
+            case ScriptEngine.LANGUAGE_VERSION:
+                return getLanguageVersion();
+            case "THREADING":
+                // Not thread-safe: evaluations run in contexts of their own, but share the bindings and the values
+                // in them, which include strings still being appended to in place.
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public String getMethodCallSyntax(String object, String method, String... args) {
+        return object + "." + method + "(" + String.join(", ", args) + ")";
+    }
+
+    @Override
+    public String getOutputStatement(String toDisplay) {
+        return "print \"" + toDisplay + "\";";
+    }
+
+    @Override
+    public String getProgram(String... statements) {
+        StringBuilder program = new StringBuilder();
+        for (String statement : statements) {
+            program.append(statement);
+            if (!statement.trim().endsWith(";")) {
+                program.append(';');
+            }
+            program.append('\n');
+        }
+
+        return program.toString();
+    }
+
+    @Override
+    public ScriptEngine getScriptEngine() {
+        return new JeeveeScriptEngine(this);
+    }
+}
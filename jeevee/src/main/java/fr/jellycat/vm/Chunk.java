@@ -0,0 +1,69 @@
+package fr.jellycat.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public final class Chunk {
+    byte[] code = new byte[64];
+    int count = 0;
+    int[] lines = new int[64];
+    int[] columns = new int[64];
+    Object[] constants;
+    int maxLocals = 0;
+    int maxStack = 0;
+
+    private final List<Object> constantList = new ArrayList<>();
+    private final Map<Object, Integer> constantIndex = new HashMap<>();
+
+    public void write(byte value, int line, int column) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+            columns = Arrays.copyOf(columns, count * 2);
+        }
+
+        code[count] = value;
+        lines[count] = line;
+        columns[count] = column;
+        count++;
+    }
+
+    public void writeShort(int value, int line, int column) {
+        write((byte) ((value >> 8) & 0xff), line, column);
+        write((byte) (value & 0xff), line, column);
+    }
+
+    public void patchShort(int offset, int value) {
+        code[offset] = (byte) ((value >> 8) & 0xff);
+        code[offset + 1] = (byte) (value & 0xff);
+    }
+
+    public int addConstant(Object value) {
+        Integer index = constantIndex.get(value);
+        if (index != null)
+            return index;
+
+        index = constantList.size();
+        constantList.add(value);
+        constantIndex.put(value, index);
+        return index;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public void setFrameSize(int maxLocals, int maxStack) {
+        this.maxLocals = maxLocals;
+        this.maxStack = maxStack;
+    }
+
+    public Chunk seal() {
+        code = Arrays.copyOf(code, count);
+        constants = constantList.toArray();
+        return this;
+    }
+}
@@ -0,0 +1,75 @@
+package fr.jellycat.vm;
+
+public final class OpCode {
+    // Operands are unsigned 16-bit values, big-endian, right after the opcode.
+    public static final byte CONSTANT = 0;
+    public static final byte NIL = 1;
+    public static final byte TRUE = 2;
+    public static final byte FALSE = 3;
+    public static final byte POP = 4;
+    public static final byte GET_LOCAL = 5;
+    public static final byte SET_LOCAL = 6;
+    public static final byte GET_GLOBAL = 7;
+    public static final byte SET_GLOBAL = 8;
+    public static final byte DEFINE_GLOBAL = 9;
+    public static final byte EQUAL = 10;
+    public static final byte NOT_EQUAL = 11;
+    public static final byte GREATER = 12;
+    public static final byte GREATER_EQUAL = 13;
+    public static final byte LESS = 14;
+    public static final byte LESS_EQUAL = 15;
+    public static final byte ADD = 16;
+    public static final byte SUBTRACT = 17;
+    public static final byte MULTIPLY = 18;
+    public static final byte DIVIDE = 19;
+    public static final byte MODULO = 20;
+    public static final byte NOT = 21;
+    public static final byte NEGATE = 22;
+    public static final byte INCREMENT = 23;
+    public static final byte DECREMENT = 24;
+    public static final byte SELECT = 25;
+    public static final byte PRINT = 26;
+    public static final byte JUMP = 27;
+    public static final byte JUMP_IF_FALSE = 28;
+    public static final byte JUMP_IF_TRUE = 29;
+    public static final byte POP_JUMP_IF_FALSE = 30;
+    public static final byte LOOP = 31;
+    public static final byte RETURN = 32;
+
+    private OpCode() {
+    }
+
+    // Net change of the operand stack height.
+    public static int stackEffect(byte op) {
+        switch (op) {
+            case CONSTANT:
+            case NIL:
+            case TRUE:
+            case FALSE:
+            case GET_LOCAL:
+            case GET_GLOBAL:
+                return 1;
+            case POP:
+            case DEFINE_GLOBAL:
+            case EQUAL:
+            case NOT_EQUAL:
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+            case ADD:
+            case SUBTRACT:
+            case MULTIPLY:
+            case DIVIDE:
+            case MODULO:
+            case PRINT:
+            case POP_JUMP_IF_FALSE:
+            case RETURN:
+                return -1;
+            case SELECT:
+                return -2;
+            default:
+                return 0;
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package fr.jellycat.vm;
+
+import static fr.jellycat.vm.OpCode.*;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import fr.jellycat.Numbers;
+
+public final class VM {
+    // Marks global slots that no 'let' has defined yet.
+    private static final Object UNDEFINED = new Object();
+
+    private final Consumer<String> out;
+    private Object[] globals = new Object[8];
+
+    public VM(Consumer<String> out) {
+        this.out = out;
+        Arrays.fill(globals, UNDEFINED);
+    }
+
+    public Object run(Chunk chunk) {
+        final byte[] code = chunk.code;
+        final Object[] constants = chunk.constants;
+
+        // Locals sit at the bottom of the frame, the operand stack right above them.
+        final Object[] stack = new Object[chunk.maxLocals + chunk.maxStack];
+        int sp = chunk.maxLocals;
+        int ip = 0;
+
+        for (;;) {
+            int at = ip;
+            byte op = code[ip++];
+
+            switch (op) {
+                case CONSTANT:
+                    stack[sp++] = constants[readShort(code, ip)];
+                    ip += 2;
+                    break;
+                case NIL:
+                    stack[sp++] = null;
+                    break;
+                case TRUE:
+                    stack[sp++] = Boolean.TRUE;
+                    break;
+                case FALSE:
+                    stack[sp++] = Boolean.FALSE;
+                    break;
+                case POP:
+                    stack[--sp] = null;
+                    break;
+                case GET_LOCAL:
+                    stack[sp++] = stack[readShort(code, ip)];
+                    ip += 2;
+                    break;
+                case SET_LOCAL:
+                    stack[readShort(code, ip)] = stack[sp - 1];
+                    ip += 2;
+                    break;
+                case GET_GLOBAL: {
+                    int slot = readShort(code, ip);
+                    if (slot >= globals.length || globals[slot] == UNDEFINED) {
+                        throw undefined(chunk, at, constants[readShort(code, ip + 2)]);
+                    }
+
+                    stack[sp++] = globals[slot];
+                    ip += 4;
+                    break;
+                }
+                case SET_GLOBAL: {
+                    int slot = readShort(code, ip);
+                    if (slot >= globals.length || globals[slot] == UNDEFINED) {
+                        throw undefined(chunk, at, constants[readShort(code, ip + 2)]);
+                    }
+
+                    globals[slot] = stack[sp - 1];
+                    ip += 4;
+                    break;
+                }
+                case DEFINE_GLOBAL: {
+                    int slot = readShort(code, ip);
+                    if (slot >= globals.length) {
+                        int size = globals.length;
+                        globals = Arrays.copyOf(globals, Math.max(size * 2, slot + 1));
+                        Arrays.fill(globals, size, globals.length, UNDEFINED);
+                    }
+
+                    globals[slot] = stack[--sp];
+                    stack[sp] = null;
+                    ip += 4;
+                    break;
+                }
+                case EQUAL: {
+                    Object right = stack[--sp];
+                    stack[sp - 1] = isEqual(stack[sp - 1], right);
+                    break;
+                }
+                case NOT_EQUAL: {
+                    Object right = stack[--sp];
+                    stack[sp - 1] = !isEqual(stack[sp - 1], right);
+                    break;
+                }
+                case GREATER: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    checkNumberOperands(chunk, at, left, right);
+                    stack[sp - 1] = (double) left > (double) right;
+                    break;
+                }
+                case GREATER_EQUAL: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    checkNumberOperands(chunk, at, left, right);
+                    stack[sp - 1] = (double) left >= (double) right;
+                    break;
+                }
+                case LESS: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    checkNumberOperands(chunk, at, left, right);
+                    stack[sp - 1] = (double) left < (double) right;
+                    break;
+                }
+                case LESS_EQUAL: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    checkNumberOperands(chunk, at, left, right);
+                    stack[sp - 1] = (double) left <= (double) right;
+                    break;
+                }
+                case ADD: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    if (left instanceof Double && right instanceof Double) {
+                        stack[sp - 1] = (double) left + (double) right;
+                    } else if (left instanceof String && right instanceof String) {
+                        stack[sp - 1] = (String) left + (String) right;
+                    } else {
+                        throw error(chunk, at, "Operands must be numbers or strings");
+                    }
+                    break;
+                }
+                case SUBTRACT: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    checkNumberOperands(chunk, at, left, right);
+                    stack[sp - 1] = (double) left - (double) right;
+                    break;
+                }
+                case MULTIPLY: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    checkNumberOperands(chunk, at, left, right);
+                    stack[sp - 1] = (double) left * (double) right;
+                    break;
+                }
+                case DIVIDE: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    checkNumberOperands(chunk, at, left, right);
+                    if ((double) right == 0) {
+                        throw error(chunk, at, "Division by zero is not possible.");
+                    }
+
+                    stack[sp - 1] = (double) left / (double) right;
+                    break;
+                }
+                case MODULO: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    checkNumberOperands(chunk, at, left, right);
+                    stack[sp - 1] = (double) left % (double) right;
+                    break;
+                }
+                case NOT:
+                    stack[sp - 1] = !isTruthy(stack[sp - 1]);
+                    break;
+                case NEGATE:
+                    checkNumberOperand(chunk, at, stack[sp - 1]);
+                    stack[sp - 1] = -(double) stack[sp - 1];
+                    break;
+                case INCREMENT:
+                    checkNumberOperand(chunk, at, stack[sp - 1]);
+                    stack[sp - 1] = (double) stack[sp - 1] + 1;
+                    break;
+                case DECREMENT:
+                    checkNumberOperand(chunk, at, stack[sp - 1]);
+                    stack[sp - 1] = (double) stack[sp - 1] - 1;
+                    break;
+                case SELECT: {
+                    // Both branches of a conditional are evaluated before the test picks one.
+                    Object alternate = stack[--sp];
+                    Object consequent = stack[--sp];
+                    stack[sp - 1] = isTruthy(stack[sp - 1]) ? consequent : alternate;
+                    stack[sp] = null;
+                    stack[sp + 1] = null;
+                    break;
+                }
+                case PRINT:
+                    out.accept(stringify(stack[--sp]));
+                    stack[sp] = null;
+                    break;
+                case JUMP:
+                    ip += 2 + readShort(code, ip);
+                    break;
+                case JUMP_IF_FALSE:
+                    if (!isTruthy(stack[sp - 1])) {
+                        ip += 2 + readShort(code, ip);
+                    } else {
+                        ip += 2;
+                    }
+                    break;
+                case JUMP_IF_TRUE:
+                    if (isTruthy(stack[sp - 1])) {
+                        ip += 2 + readShort(code, ip);
+                    } else {
+                        ip += 2;
+                    }
+                    break;
+                case POP_JUMP_IF_FALSE:
+                    if (!isTruthy(stack[--sp])) {
+                        ip += 2 + readShort(code, ip);
+                    } else {
+                        ip += 2;
+                    }
+                    stack[sp] = null;
+                    break;
+                case LOOP:
+                    ip += 2 - readShort(code, ip);
+                    break;
+                case RETURN:
+                    return stack[--sp];
+                default:
+                    throw error(chunk, at, "Unknown opcode " + op + ".");
+            }
+        }
+    }
+
+    private static int readShort(byte[] code, int ip) {
+        return ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+    }
+
+    private static VmError error(Chunk chunk, int at, String message) {
+        return new VmError(message, chunk.lines[at], chunk.columns[at]);
+    }
+
+    private static VmError undefined(Chunk chunk, int at, Object name) {
+        return error(chunk, at, "Undefined variable '" + name + "'.");
+    }
+
+    private static void checkNumberOperand(Chunk chunk, int at, Object operand) {
+        if (operand instanceof Double)
+            return;
+        throw error(chunk, at, "Operand must be a number.");
+    }
+
+    private static void checkNumberOperands(Chunk chunk, int at, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double)
+            return;
+        throw error(chunk, at, "Operands must be numbers.");
+    }
+
+    private static boolean isTruthy(Object object) {
+        if (object == null)
+            return false;
+        if (object instanceof Boolean)
+            return (boolean) object;
+
+        return true;
+    }
+
+    private static boolean isEqual(Object a, Object b) {
+        if (a == null && b == null)
+            return true;
+        if (a == null)
+            return false;
+
+        return a.equals(b);
+    }
+
+    public static String stringify(Object object) {
+        if (object == null)
+            return "nil";
+
+        if (object instanceof Double)
+            return Numbers.toString((double) object);
+
+        return object.toString();
+    }
+}
@@ -0,0 +1,12 @@
+package fr.jellycat.vm;
+
+public class VmError extends RuntimeException {
+    public final int line;
+    public final int column;
+
+    VmError(String message, int line, int column) {
+        super(message);
+        this.line = line;
+        this.column = column;
+    }
+}
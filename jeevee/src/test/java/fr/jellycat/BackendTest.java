@@ -0,0 +1,57 @@
+package fr.jellycat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import fr.jellycat.vm.VM;
+
+/**
+ * Runs every script in test/ on both backends.
+ */
+class BackendTest {
+    @Test
+    void vmMatchesTreeWalker() throws IOException {
+        try (DirectoryStream<Path> scripts = Files.newDirectoryStream(Paths.get("..", "test"), "*.eve")) {
+            for (Path script : scripts) {
+                String source = new String(Files.readAllBytes(script), StandardCharsets.UTF_8);
+                String expected = capture(() -> new Interpreter().interpret(parse(source)));
+                String actual = capture(() -> new VM(Jeevee::log).run(new BytecodeCompiler().compile(parse(source))));
+
+                assertFalse(expected.isEmpty(), script.toString());
+                assertEquals(expected, actual, script.toString());
+            }
+        }
+    }
+
+    private static List<Stmt> parse(String source) {
+        List<Stmt> statements = new Optimizer(2).optimize(new Parser(new Scanner(source)).parse());
+        new Resolver().resolve(statements);
+        return statements;
+    }
+
+    private static String capture(Runnable run) {
+        PrintStream stdout = System.out;
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        try {
+            System.setOut(new PrintStream(buffer, true));
+            run.run();
+        } finally {
+            System.setOut(stdout);
+        }
+
+        return new String(buffer.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,65 @@
+package fr.jellycat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Optional;
+
+import org.junit.jupiter.api.Test;
+
+class BudgetTest {
+    @Test
+    void stopsALoopThatNeverEnds() {
+        Context context = new Context(new Engine().compile("let n = 0;\nwhile true do\n  n = n + 1;\nend\n"));
+        context.limitFuel(100_000);
+
+        Optional<Diagnostic> error = context.run();
+
+        assertTrue(error.isPresent());
+        assertEquals("Out of fuel: more than 100000 loop iterations and calls.", error.get().message());
+        assertEquals(2, error.get().line());
+        // Compiled code took over past the threshold, and drew on the same budget.
+        assertEquals(100_000L, context.get("n"));
+    }
+
+    @Test
+    void chargesCountedLoopsToo() {
+        Program program = new Engine().compile("let n = 0;\nfor let i = 0; i < 5000; i++ do\n  n = n + 1;\nend\n");
+
+        Context enough = new Context(program);
+        enough.limitFuel(5000);
+        assertEquals(Optional.empty(), enough.run());
+
+        Context scarce = new Context(program);
+        scarce.limitFuel(4999);
+        assertTrue(scarce.run().isPresent());
+        assertEquals(4999L, scarce.get("n"));
+    }
+
+    @Test
+    void givesBackTheFrameOfACallItStops() {
+        Budget budget = new Budget();
+        budget.limitMemory(100);
+        Token paren = new Token(TokenType.RIGHT_PAREN, ")", null, 1, 1);
+
+        assertThrows(RuntimeError.class, () -> budget.call(paren, 10));
+        assertEquals(100, budget.memory);
+    }
+
+    @Test
+    void stopsStringsGrowingPastTheMemoryLimit() {
+        Program program = new Engine().compile("let s = \"\";\nwhile true do\n  s = s + \"xxxxxxxxxx\";\nend\n");
+        Context context = new Context(program);
+        context.limitMemory(1 << 20);
+
+        Optional<Diagnostic> error = context.run();
+
+        assertTrue(error.isPresent());
+        assertEquals("Out of memory: more than 1048576 bytes allocated.", error.get().message());
+        assertEquals(3, error.get().line());
+        // Appending in place charges each piece rather than the whole string again, so it got well past 1000 pieces.
+        int length = ((String) context.get("s")).length();
+        assertTrue(length > 100_000 && length < 524_288, Integer.toString(length));
+    }
+}
@@ -0,0 +1,62 @@
+package fr.jellycat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class DoubleFormatterTest {
+    @Test
+    void tableHoldsRoundedUpPowersOfTen() {
+        for (int k = DoubleFormatter.K_MIN; k <= DoubleFormatter.K_MAX; k++) {
+            BigInteger numerator = k <= 0 ? BigInteger.TEN.pow(-k) : BigInteger.ONE;
+            BigInteger denominator = k > 0 ? BigInteger.TEN.pow(k) : BigInteger.ONE;
+            int shift = 125 - DoubleFormatter.flog2pow10(-k);
+            if (shift >= 0) {
+                numerator = numerator.shiftLeft(shift);
+            } else {
+                denominator = denominator.shiftLeft(-shift);
+            }
+
+            BigInteger g = numerator.divide(denominator).add(BigInteger.ONE);
+            int i = 2 * (k - DoubleFormatter.K_MIN);
+            assertEquals(g.shiftRight(63).longValue(), DoubleFormatter.G[i], "g1 " + k);
+            assertEquals(g.longValue() & Long.MAX_VALUE, DoubleFormatter.G[i + 1], "g0 " + k);
+        }
+    }
+
+    @Test
+    void laysOutLikeDoubleToString() {
+        assertEquals("0", DoubleFormatter.toString(0.0));
+        assertEquals("-0", DoubleFormatter.toString(-0.0));
+        assertEquals("42", DoubleFormatter.toString(42));
+        assertEquals("3.5", DoubleFormatter.toString(3.5));
+        assertEquals("0.30000000000000004", DoubleFormatter.toString(0.1 + 0.2));
+        assertEquals("0.001", DoubleFormatter.toString(0.001));
+        assertEquals("1.0E-4", DoubleFormatter.toString(0.0001));
+        assertEquals("9999999.5", DoubleFormatter.toString(9999999.5));
+        assertEquals("1.0E7", DoubleFormatter.toString(1e7));
+        assertEquals("1.2345E10", DoubleFormatter.toString(12345e6));
+        assertEquals("4.9E-324", DoubleFormatter.toString(Double.MIN_VALUE));
+        assertEquals("1.7976931348623157E308", DoubleFormatter.toString(Double.MAX_VALUE));
+        assertEquals("NaN", DoubleFormatter.toString(Double.NaN));
+        assertEquals("-Infinity", DoubleFormatter.toString(Double.NEGATIVE_INFINITY));
+        // Java 8 to 18 print 2.0E23 as 1.9999999999999998E23.
+        assertEquals("2.0E23", DoubleFormatter.toString(2e23));
+    }
+
+    @Test
+    void readsBackAsTheSameDouble() {
+        Random random = new Random(19);
+        for (int i = 0; i < 100000; i++) {
+            double value = Double.longBitsToDouble(random.nextLong());
+            if (Double.isNaN(value))
+                continue;
+
+            String text = DoubleFormatter.toString(value);
+            assertEquals(Double.doubleToRawLongBits(value), Double.doubleToRawLongBits(Double.parseDouble(text)), text);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package fr.jellycat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+class EngineTest {
+    @Test
+    void runsOneProgramInConcurrentContexts() throws Exception {
+        // Long enough for the loop to get compiled while other contexts run it.
+        Program program = new Engine().compile("let total = 0;\n"
+                + "for let i = 0; i < 5000; i++ do\n"
+                + "  total = total + i * n;\n"
+                + "end\n"
+                + "print total;\n"
+                + "let label = \"n=\" + \"\" + name;\n");
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int n = 0; n < 16; n++) {
+                int factor = n;
+                results.add(executor.submit(() -> {
+                    List<String> lines = new ArrayList<>();
+                    Context context = new Context(program, lines::add);
+                    context.set("n", factor);
+                    context.set("name", "ctx" + factor);
+                    assertEquals(Optional.empty(), context.run());
+                    return lines + " " + context.get("total") + " " + context.get("label");
+                }));
+            }
+
+            for (int n = 0; n < 16; n++) {
+                long total = 12497500L * n;
+                assertEquals("[" + Numbers.toString(total) + "] " + total + " n=ctx" + n, results.get(n).get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void callsFunctionsWithTheGlobalsOfTheCallingContext() {
+        Engine engine = new Engine();
+        Context definitions = new Context(engine.compile("let count = 0;\n"
+                + "def inc(by)\n"
+                + "  count = count + by;\n"
+                + "  return count;\n"
+                + "end\n"));
+        assertEquals(Optional.empty(), definitions.run());
+        Object inc = definitions.get("inc");
+        assertTrue(Context.isFunction(inc));
+
+        // Another program numbers its globals like the first, whatever it names first.
+        Context caller = new Context(engine.compile("let other = 1;\nlet count = 100;\nlet before = inc(1);\n"));
+        caller.set("inc", inc);
+        assertEquals(Optional.empty(), caller.run());
+        assertEquals(101L, caller.get("before"));
+
+        assertEquals(Optional.empty(), caller.call(inc, 2));
+        assertEquals(103L, caller.result());
+        assertEquals(103L, caller.get("count"));
+        assertEquals(0L, definitions.get("count"));
+        assertEquals("Expected 1 arguments but got 0.", caller.call(inc).get().message());
+
+        Context foreign = new Context(new Engine().compile("let inc = nil;\n"));
+        assertThrows(IllegalArgumentException.class, () -> foreign.set("inc", inc));
+    }
+
+    @Test
+    void returnsSyntaxErrorsAsValues() {
+        // The parser gets past each error and reports the next.
+        Program program = new Engine().compile("let x = ;\nprint 1 @ 2;\nprint 3;\n");
+
+        assertTrue(program.hasErrors());
+        List<String> messages = new ArrayList<>();
+        for (Diagnostic diagnostic : program.diagnostics()) {
+            assertEquals(Diagnostic.Kind.SYNTAX, diagnostic.kind());
+            messages.add(diagnostic.line() + " " + diagnostic.message());
+        }
+        assertEquals(Arrays.asList("1 Expect expression.", "2 Unexpected character.", "2 Expect ';' after value."),
+                messages);
+        assertThrows(IllegalArgumentException.class, () -> new Context(program));
+    }
+
+    @Test
+    void returnsRuntimeErrorsAsValues() {
+        Program program = new Engine().compile("let x = 1;\nprint x / 0;\nx = 2;\n");
+        List<String> lines = new ArrayList<>();
+        Context context = new Context(program, lines::add);
+
+        Optional<Diagnostic> error = context.run();
+
+        assertTrue(error.isPresent());
+        assertEquals(Diagnostic.Kind.RUNTIME, error.get().kind());
+        assertEquals(2, error.get().line());
+        assertEquals("Division by zero is not possible.", error.get().message());
+        assertEquals(1L, context.get("x"));
+        assertFalse(program.hasErrors());
+        assertTrue(lines.isEmpty());
+    }
+}
@@ -0,0 +1,166 @@
+package fr.jellycat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.jupiter.api.Test;
+
+class FunctionTest {
+    @Test
+    void callsRecursiveFunctions() {
+        assertEquals(Arrays.asList("610", "<fn fib>"), run("def fib(n)\n"
+                + "  if n < 2 then\n"
+                + "    return n;\n"
+                + "  end\n"
+                + "  return fib(n - 1) + fib(n - 2);\n"
+                + "end\n"
+                + "print fib(15);\n"
+                + "print fib;\n"));
+    }
+
+    @Test
+    void closuresShareTheVariablesTheyCapture() {
+        assertEquals(Arrays.asList("3", "1", "7", "b!"), run("def counter()\n"
+                + "  let n = 0;\n"
+                + "  return lambda: n = n + 1;\n"
+                + "end\n"
+                + "let c = counter();\n"
+                + "c();\n"
+                + "c();\n"
+                + "print c();\n"
+                + "print counter()();\n"
+                + "def adder(x)\n"
+                + "  return lambda y: x + y;\n"
+                + "end\n"
+                + "print adder(3)(4);\n"
+                + "def outer()\n"
+                + "  let a = \"a\";\n"
+                + "  def middle()\n"
+                + "    return lambda: a + \"!\";\n"
+                + "  end\n"
+                + "  let f = middle();\n"
+                + "  a = \"b\";\n"
+                + "  return f();\n"
+                + "end\n"
+                + "print outer();\n"));
+    }
+
+    @Test
+    void capturesAFreshVariableOnEachIteration() {
+        assertEquals(Arrays.asList("30", "6"), run("let first = nil;\n"
+                + "let second = nil;\n"
+                + "let last = nil;\n"
+                + "for let i = 1; i <= 2; i++ do\n"
+                + "  let j = i * 10;\n"
+                + "  if i == 1 then first = lambda: j; else second = lambda: j; end\n"
+                + "  last = lambda: i;\n"
+                + "end\n"
+                + "print first() + second();\n"
+                + "print last() * 2;\n"));
+    }
+
+    @Test
+    void returnsFromInsideLoops() {
+        assertEquals(Arrays.asList("70", "6"), run("def find(n)\n"
+                + "  for let i = 0; i < 100; i++ do\n"
+                + "    if i == n then return i * 10; end\n"
+                + "  end\n"
+                + "end\n"
+                + "def first(n)\n"
+                + "  let i = 0;\n"
+                + "  while true do\n"
+                + "    i++;\n"
+                + "    if i > n then return i; end\n"
+                + "  end\n"
+                + "end\n"
+                + "print find(7);\n"
+                + "print first(5);\n"));
+    }
+
+    @Test
+    void runsTailCallsInConstantStack() {
+        assertEquals(Arrays.asList("5.000005E11", "true", "8 3", "7"), run("def sum(n, total)\n"
+                + "  if n == 0 then return total; end\n"
+                + "  return sum(n - 1, total + n);\n"
+                + "end\n"
+                + "print sum(1000000, 0);\n"
+                + "def even(n)\n"
+                + "  if n == 0 then return true; end\n"
+                + "  return odd(n - 1);\n"
+                + "end\n"
+                + "def odd(n)\n"
+                + "  if n == 0 then return false; end\n"
+                + "  return even(n - 1);\n"
+                + "end\n"
+                + "print even(300000);\n"
+                + "def pair(a, b)\n"
+                + "  let s = a + \" \" + b;\n"
+                + "  return s;\n"
+                + "end\n"
+                + "def swap(n, a, b)\n"
+                + "  if n == 0 then return pair(a, b); end\n"
+                + "  return swap(n - 1, b, a);\n"
+                + "end\n"
+                + "print swap(100001, \"3\", \"8\");\n"
+                + "def later(n)\n"
+                + "  let f = lambda: n;\n"
+                + "  if n < 7 then return later(n + 1); end\n"
+                + "  return f();\n"
+                + "end\n"
+                + "print later(0);\n"));
+    }
+
+    @Test
+    void checksArityAgainWhenASiteCallsAnotherFunction() {
+        Context context = new Context(new Engine().compile("let f = lambda a: a;\n"
+                + "let g = lambda a, b: a;\n"
+                + "let calls = 0;\n"
+                + "while true do\n"
+                + "  f(1);\n"
+                + "  calls++;\n"
+                + "  if calls == 3 then f = g; end\n"
+                + "end\n"));
+
+        Optional<Diagnostic> error = context.run();
+
+        assertTrue(error.isPresent());
+        assertEquals("Expected 2 arguments but got 1.", error.get().message());
+        assertEquals(5, error.get().line());
+        assertEquals(3L, context.get("calls"));
+    }
+
+    @Test
+    void reportsMisuses() {
+        Program program = new Engine().compile("return 1;\ndef f(a, a) end\n");
+        assertEquals(2, program.diagnostics().size());
+        assertEquals("Can't return from top-level code.", program.diagnostics().get(0).message());
+        assertEquals("Already a parameter named 'a'.", program.diagnostics().get(1).message());
+
+        Optional<Diagnostic> error = new Context(new Engine().compile("let x = 1;\nx();\n")).run();
+        assertEquals("Can only call functions.", error.get().message());
+    }
+
+    @Test
+    void chargesCallsToTheFuel() {
+        Context context = new Context(new Engine().compile("def loop(n)\n  return loop(n + 1);\nend\nloop(0);\n"));
+        context.limitFuel(100);
+
+        Optional<Diagnostic> error = context.run();
+
+        assertEquals("Out of fuel: more than 100 loop iterations and calls.", error.get().message());
+        assertEquals(2, error.get().line());
+    }
+
+    private static List<String> run(String source) {
+        List<String> lines = new ArrayList<>();
+        Optional<Diagnostic> error = new Context(new Engine().compile(source), lines::add).run();
+
+        assertEquals(Optional.empty(), error);
+        return lines;
+    }
+}
@@ -0,0 +1,93 @@
+package fr.jellycat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Optional;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.jupiter.api.Test;
+
+class MetricsTest {
+    @Test
+    void countsWhatTheInterpreterDoes() {
+        String source = "let text = \"\";\n"
+                + "for let i = 0; i < 10; i++ do\n"
+                + "  let copy = i;\n"
+                + "  text = text + \"x\";\n"
+                + "end\n";
+
+        List<Stmt> statements = new Optimizer(2).optimize(new Parser(new Scanner(source)).parse());
+        new Resolver().resolve(statements);
+
+        // Other tests run interpreters in this JVM too, so compare before and after.
+        Metrics metrics = Metrics.instance();
+        long concatenations = metrics.getStringConcatenations();
+        long globalLookups = metrics.getGlobalLookups();
+        long localLookups = metrics.getLocalLookupsByDepth()[0];
+        long frames = metrics.getFramesAllocated();
+        long statementsExecuted = metrics.getStatementsExecuted();
+
+        new Interpreter(new Output.Direct(), false).interpret(statements);
+
+        assertEquals(10, metrics.getStringConcatenations() - concatenations);
+        // text read and written on each iteration.
+        assertEquals(20, metrics.getGlobalLookups() - globalLookups);
+        // copy's initializer reads i.
+        assertEquals(10, metrics.getLocalLookupsByDepth()[0] - localLookups);
+        assertEquals(1, metrics.getFramesAllocated() - frames);
+        assertEquals(1 + 1 + 10 * 3 + 1, metrics.getStatementsExecuted() - statementsExecuted);
+    }
+
+    @Test
+    void registersForEmbeddedEngines() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("fr.jellycat:type=Metrics");
+
+        System.setProperty("jeevee.jmx", "true");
+        Engine engine;
+        try {
+            engine = new Engine();
+        } finally {
+            System.clearProperty("jeevee.jmx");
+        }
+        assertTrue(server.isRegistered(name));
+
+        long statements = (Long) server.getAttribute(name, "StatementsExecuted");
+        assertEquals(Optional.empty(), new Context(engine.compile("let a = 1;\nlet b = a;\n")).run());
+        assertEquals(2L, (Long) server.getAttribute(name, "StatementsExecuted") - statements);
+    }
+
+    @Test
+    void timesTheParsingOfEmbeddedScripts() {
+        new Engine().compile("metrics-test.eve", "print 1;");
+
+        assertTrue(Metrics.instance().getParseNanos().get("metrics-test.eve") > 0);
+    }
+
+    @Test
+    void countsCallFramesOnlyWhenItAllocatesThem() {
+        String source = "def f(n)\n"
+                + "  return n;\n"
+                + "end\n"
+                + "for let i = 0; i < 10; i++ do\n"
+                + "  f(i);\n"
+                + "end\n";
+
+        List<Stmt> statements = new Optimizer(2).optimize(new Parser(new Scanner(source)).parse());
+        new Resolver().resolve(statements);
+
+        Metrics metrics = Metrics.instance();
+        long frames = metrics.getFramesAllocated();
+
+        new Interpreter(new Output.Direct(), false).interpret(statements);
+
+        // The loop's frame, and the one every call takes over from the previous.
+        assertEquals(2, metrics.getFramesAllocated() - frames);
+    }
+}
@@ -0,0 +1,42 @@
+package fr.jellycat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class NumbersTest {
+    @Test
+    void boxesExactIntegersAsLongs() {
+        assertEquals(3L, Numbers.box(3.0));
+        assertEquals(Numbers.MAX_EXACT, Numbers.box(Math.pow(2, 53)));
+        assertEquals(3.5, Numbers.box(3.5));
+        assertEquals(-0.0, Numbers.box(-0.0));
+        assertEquals(Math.pow(2, 54), Numbers.box(Math.pow(2, 54)));
+        assertEquals(Double.NaN, Numbers.box(Double.NaN));
+    }
+
+    @Test
+    void printsAndComparesLikeDoubles() {
+        assertEquals("42", Interpreter.stringify(42L));
+        assertEquals("1.0E7", Interpreter.stringify(10_000_000L));
+        assertEquals(Interpreter.stringify(-123456789.0), Interpreter.stringify(-123456789L));
+
+        assertTrue(Interpreter.isEqual(1L, 1.0));
+        assertFalse(Interpreter.isEqual(0L, -0.0));
+        assertFalse(Interpreter.isEqual(1L, "1"));
+    }
+
+    @Test
+    void literalsAndFoldedResultsPickTheirRepresentation() {
+        assertEquals(6L, evaluate("4 / 2 * 3"));
+        assertEquals(3.5, evaluate("7 / 2"));
+        assertEquals(-0.0, evaluate("0 * -1"));
+    }
+
+    private static Object evaluate(String source) {
+        Stmt.Expression statement = (Stmt.Expression) new Parser(new Scanner(source + ";")).parse().get(0);
+        return ((Expr.Literal) new Optimizer(1).optimize(statement.expression)).value;
+    }
+}
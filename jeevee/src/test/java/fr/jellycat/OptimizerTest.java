@@ -0,0 +1,60 @@
+package fr.jellycat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class OptimizerTest {
+    @Test
+    void foldsLiteralOperations() {
+        assertEquals(7L, literal("1 + 2 * 3"));
+        assertEquals("ab", literal("\"a\" + \"b\""));
+        assertEquals(true, literal("1 < 2 and !nil"));
+        assertEquals(2L, literal("false ? 1 : 2"));
+    }
+
+    @Test
+    void keepsOperationsThatFail() {
+        assertTrue(optimize("1 / (2 - 2)") instanceof Expr.Binary);
+        assertTrue(optimize("-\"a\"") instanceof Expr.Unary);
+        assertTrue(optimize("true ? 1 : 1 / 0") instanceof Expr.Conditional);
+    }
+
+    @Test
+    void dropsDeadBranchesAndLoops() {
+        List<Stmt> statements = new Optimizer(1).optimize(parse("if false then print 1; end while nil do print 2; end"));
+        assertTrue(statements.isEmpty());
+    }
+
+    @Test
+    void turnsCountedLoopsIntoForNodes() {
+        List<Stmt> statements = new Optimizer(2).optimize(parse("for let i = 0; i < n; i++ do print i * (k + 1); end"));
+
+        Stmt.For loop = (Stmt.For) statements.get(0);
+        assertEquals(1.0, loop.step);
+        assertEquals(1, loop.invariants.size());
+        assertTrue(loop.invariants.get(0).expression instanceof Expr.Grouping);
+    }
+
+    @Test
+    void leavesLoopsThatMoveTheirCounter() {
+        List<Stmt> statements = new Optimizer(2).optimize(parse("for let i = 0; i < 9; i++ do i = i * 2; end"));
+        assertTrue(statements.get(0) instanceof Stmt.Block);
+    }
+
+    private static Object literal(String source) {
+        return ((Expr.Literal) optimize(source)).value;
+    }
+
+    private static Expr optimize(String source) {
+        Stmt.Expression statement = (Stmt.Expression) parse(source + ";").get(0);
+        return new Optimizer(1).optimize(statement.expression);
+    }
+
+    private static List<Stmt> parse(String source) {
+        return new Parser(new Scanner(source)).parse();
+    }
+}
@@ -0,0 +1,56 @@
+package fr.jellycat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import org.junit.jupiter.api.Test;
+
+class OutputTest {
+    private static final String NEWLINE = System.lineSeparator();
+
+    @Test
+    void buffersUntilFullOrFlushed() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Output output = new Output.Buffered(new PrintStream(bytes, true), false);
+
+        output.println("a");
+        assertEquals("", bytes.toString());
+
+        StringBuilder line = new StringBuilder();
+        while (line.length() < Output.CAPACITY) {
+            line.append('x');
+        }
+        output.println(line.toString());
+        assertEquals("a" + NEWLINE + line + NEWLINE, bytes.toString());
+
+        output.println("b");
+        output.close();
+        assertEquals("a" + NEWLINE + line + NEWLINE + "b" + NEWLINE, bytes.toString());
+    }
+
+    @Test
+    void writesEveryLineWhenInteractive() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Output output = new Output.Buffered(new PrintStream(bytes, true), true);
+
+        output.println("a");
+        assertEquals("a" + NEWLINE, bytes.toString());
+    }
+
+    @Test
+    void writerThreadKeepsLinesInOrder() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Output output = new Output.Threaded(new PrintStream(bytes, true));
+
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            output.println(Integer.toString(i));
+            expected.append(i).append(NEWLINE);
+        }
+        output.close();
+
+        assertEquals(expected.toString(), bytes.toString());
+    }
+}
@@ -0,0 +1,75 @@
+package fr.jellycat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+class ParserTest {
+    @Test
+    void bindsOperatorsByPrecedence() {
+        assertEquals("(= a (? (or b (and c (== (< (+ 1 (* 2 3)) 4) d))) e (? f g h)))",
+                print("a = b or c and 1 + 2 * 3 < 4 == d ? e : f ? g : h"));
+        assertEquals("(- (- 1 2) 3)", print("1 - 2 - 3"));
+        assertEquals("(= a (= b 1))", print("a = b = 1"));
+    }
+
+    @Test
+    void parsesPrefixAndPostfixOperators() {
+        assertEquals("(* (- (post++ a)) (! (post-- (group (+ b 1)))))", print("-a++ * !(b + 1)--"));
+        assertEquals("(++ (++ a))", print("++ ++a"));
+    }
+
+    @Test
+    void parsesCallsAndLambdas() {
+        assertEquals("(+ (call (call f a (= b 1))) 2)", print("f(a, b = 1)() + 2"));
+        assertEquals("(= f (lambda x y (+ x (call y))))", print("f = lambda x, y: x + y()"));
+        assertEquals("(? a (lambda b) c)", print("a ? lambda: b : c"));
+    }
+
+    private static String print(String source) {
+        Stmt.Expression statement = (Stmt.Expression) new Parser(new Scanner(source + ";")).parse().get(0);
+        return print(statement.expression);
+    }
+
+    private static String print(Expr expr) {
+        if (expr instanceof Expr.Literal)
+            return Interpreter.stringify(((Expr.Literal) expr).value);
+        if (expr instanceof Expr.Variable)
+            return ((Expr.Variable) expr).name.lexeme;
+        if (expr instanceof Expr.Assign)
+            return "(= " + ((Expr.Assign) expr).name.lexeme + " " + print(((Expr.Assign) expr).value) + ")";
+        if (expr instanceof Expr.Grouping)
+            return "(group " + print(((Expr.Grouping) expr).expression) + ")";
+        if (expr instanceof Expr.Unary)
+            return "(" + ((Expr.Unary) expr).operator.lexeme + " " + print(((Expr.Unary) expr).right) + ")";
+        if (expr instanceof Expr.PostFix)
+            return "(post" + ((Expr.PostFix) expr).operator.lexeme + " " + print(((Expr.PostFix) expr).left) + ")";
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            return "(" + binary.operator.lexeme + " " + print(binary.left) + " " + print(binary.right) + ")";
+        }
+        if (expr instanceof Expr.Call) {
+            StringBuilder call = new StringBuilder("(call ").append(print(((Expr.Call) expr).callee)).append(' ');
+            for (Expr argument : ((Expr.Call) expr).arguments) {
+                call.append(print(argument)).append(' ');
+            }
+            return call.deleteCharAt(call.length() - 1).append(')').toString();
+        }
+        if (expr instanceof Expr.Lambda) {
+            StringBuilder lambda = new StringBuilder("(lambda ");
+            for (Token param : ((Expr.Lambda) expr).params) {
+                lambda.append(param.lexeme).append(' ');
+            }
+            Stmt.Return body = (Stmt.Return) ((Expr.Lambda) expr).body.get(0);
+            return lambda.append(print(body.value)).append(')').toString();
+        }
+        if (expr instanceof Expr.Logical) {
+            Expr.Logical logical = (Expr.Logical) expr;
+            return "(" + logical.operator.lexeme + " " + print(logical.left) + " " + print(logical.right) + ")";
+        }
+
+        Expr.Conditional conditional = (Expr.Conditional) expr;
+        return "(? " + print(conditional.test) + " " + print(conditional.consequent) + " "
+                + print(conditional.alternate) + ")";
+    }
+}
@@ -0,0 +1,45 @@
+package fr.jellycat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ProfileTest {
+    @Test
+    void countsStatementsByLineAndStack(@TempDir Path directory) throws IOException {
+        String source = "let total = 0;\n"
+                + "for let i = 0; i < 3000; i++ do\n"
+                + "  total = total + i;\n"
+                + "end\n";
+
+        List<Stmt> statements = new Optimizer(2).optimize(new Parser(new Scanner(source)).parse());
+        new Resolver().resolve(statements);
+
+        Profile profile = new Profile("loop.eve");
+        new ProfilingInterpreter(profile, new Output.Direct()).interpret(statements);
+
+        // Past the compile threshold, every iteration still went through the interpreter: the body's block and its
+        // statement both ran 3000 times on line 3.
+        ByteArrayOutputStream summary = new ByteArrayOutputStream();
+        profile.printSummary(new PrintStream(summary, true), 10);
+        assertTrue(summary.toString().matches("(?s).*\\n\\s+3\\s+6000\\s.*block, expression.*"), summary.toString());
+
+        Path collapsed = directory.resolve("loop.eve.collapsed");
+        profile.writeCollapsed(collapsed);
+        List<String> stacks = Files.readAllLines(collapsed);
+        String body = "loop.eve;loop.eve:2 for;loop.eve:3 block;loop.eve:3 expression ";
+        assertTrue(stacks.stream().anyMatch(stack -> stack.startsWith(body)), stacks.toString());
+        for (String stack : stacks) {
+            assertEquals(2, stack.split(" (?=[0-9]+$)").length, stack);
+        }
+    }
+}
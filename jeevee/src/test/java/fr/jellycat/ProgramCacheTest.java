@@ -0,0 +1,90 @@
+package fr.jellycat;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ProgramCacheTest {
+    private static final String SOURCE = "let s = \"total: \"; let n = 10;\n"
+            + "for let i = 0; i < n; i++ do if i % 2 == 0 then print s + (i * (n + 1)); else print -i; end end\n"
+            + "while n > 0 do n = n > 5 ? n - 2 : n--; end";
+
+    @Test
+    void loadsWhatItStored(@TempDir Path directory) throws IOException {
+        ProgramCache cache = ProgramCache.at(directory, 2);
+        byte[] key = cache.key(bytes(SOURCE));
+        assertNull(cache.load(key));
+
+        cache.store(key, compile(SOURCE));
+        List<Stmt> loaded = cache.load(key);
+        assertNotNull(loaded);
+
+        // Storing what was loaded gives back the same file.
+        byte[] stored = Files.readAllBytes(only(directory));
+        Path copy = Files.createDirectory(directory.resolve("copy"));
+        ProgramCache.at(copy, 2).store(key, loaded);
+        assertArrayEquals(stored, Files.readAllBytes(only(copy)));
+
+        // The loop and its body share their invariants.
+        Stmt.For loop = (Stmt.For) loaded.get(2);
+        Stmt.If branch = (Stmt.If) ((Stmt.Block) loop.body).statements.get(0);
+        Expr.Binary sum = (Expr.Binary) ((Stmt.Print) branch.consequent.get(0)).expression;
+        Expr.Binary product = (Expr.Binary) ((Expr.Grouping) sum.right).expression;
+        assertSame(loop.invariants.get(0), product.right);
+    }
+
+    @Test
+    void missesOnOtherSourcesAndDamagedFiles(@TempDir Path directory) throws IOException {
+        ProgramCache cache = ProgramCache.at(directory, 2);
+        byte[] key = cache.key(bytes(SOURCE));
+        cache.store(key, compile(SOURCE));
+
+        assertNull(cache.load(cache.key(bytes(SOURCE + " "))));
+        assertNull(ProgramCache.at(directory, 1).load(ProgramCache.at(directory, 1).key(bytes(SOURCE))));
+
+        Path file = only(directory);
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length / 2));
+        assertNull(cache.load(key));
+
+        // The checksum covers every byte of the trees, most of which would still decode when changed.
+        for (int i = 4 + key.length + 4; i < bytes.length; i++) {
+            byte[] damaged = bytes.clone();
+            damaged[i] ^= 0x04;
+            Files.write(file, damaged);
+            assertNull(cache.load(key), "byte " + i);
+        }
+    }
+
+    private static Path only(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            Path[] found = files.filter(Files::isRegularFile).toArray(Path[]::new);
+            assertEquals(1, found.length);
+            return found[0];
+        }
+    }
+
+    private static ByteBuffer bytes(String source) {
+        return ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static List<Stmt> compile(String source) {
+        List<Stmt> statements = new Optimizer(2).optimize(new Parser(new Scanner(source)).parse());
+        new Resolver().resolve(statements);
+        return statements;
+    }
+}
@@ -0,0 +1,32 @@
+package fr.jellycat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class RopeTest {
+    @Test
+    void appendsInPlaceOnlyToTheNewestString() {
+        Rope base = Rope.concat("ab", "c");
+        Rope longer = Rope.concat(base, "d");
+        // base is no longer the end of the builder, so this one copies.
+        Rope other = Rope.concat(base, "x");
+        Rope twice = Rope.concat(longer, longer);
+
+        assertEquals("abc", base.toString());
+        assertEquals("abcd", longer.toString());
+        assertEquals("abcx", other.toString());
+        assertEquals("abcdabcd", twice.toString());
+        assertEquals(3, base.length());
+        assertEquals('c', base.charAt(2));
+    }
+
+    @Test
+    void equalsStringsWithTheSameCharacters() {
+        assertTrue(Interpreter.isEqual(Rope.concat("a", "b"), "ab"));
+        assertTrue(Interpreter.isEqual("ab", Rope.concat("a", "b")));
+        assertTrue(Interpreter.isEqual(Rope.concat("a", "b"), Rope.concat("", "ab")));
+        assertEquals("ab", Interpreter.stringify(Rope.concat("a", "b")));
+    }
+}
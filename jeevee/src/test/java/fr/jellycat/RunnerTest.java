@@ -0,0 +1,48 @@
+package fr.jellycat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class RunnerTest {
+    @Test
+    void runsEveryJobAndReportsLatencies(@TempDir Path directory) throws IOException {
+        Path sum = directory.resolve("sum.eve");
+        Files.write(sum, ("let total = 0;\n"
+                + "for let i = 0; i < 2000; i++ do\n"
+                + "  total = total + i;\n"
+                + "end\n"
+                + "print total;\n").getBytes(StandardCharsets.UTF_8));
+        Path greet = directory.resolve("greet.eve");
+        Files.write(greet, "let s = \"a\" + \"b\";\nprint s;\n".getBytes(StandardCharsets.UTF_8));
+
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        int status = Runner.run(Arrays.asList(sum.toString(), greet.toString()), 200, 2, Budget.UNLIMITED,
+                Budget.UNLIMITED, new PrintStream(report, true));
+
+        assertEquals(0, status);
+        String text = report.toString();
+        assertTrue(text.startsWith("jobs        200 of 2 scripts, 0 failed"), text);
+        assertTrue(text.contains("latency     p50 "), text);
+    }
+
+    @Test
+    void takesPercentilesByNearestRank() {
+        long[] sorted = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 };
+
+        assertEquals(5, Runner.percentile(sorted, 50));
+        assertEquals(9, Runner.percentile(sorted, 90));
+        assertEquals(10, Runner.percentile(sorted, 99));
+        assertEquals(1, Runner.percentile(new long[] { 1 }, 50));
+    }
+}
@@ -0,0 +1,43 @@
+package fr.jellycat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class ScannerTest {
+    @Test
+    void bytesScanLikeTheDecodedString() {
+        StringBuilder source = new StringBuilder("let cafe = \"wörld 😀\";\n");
+        // Long enough for lexemes to straddle the scanner's window.
+        for (int i = 0; i < 2000; i++) {
+            source.append("print ").append(i).append(" * 2.5; // ünïcode\n");
+        }
+        source.append("print \"").append(new String(new char[20000]).replace('\0', 'y')).append("\";");
+
+        List<Token> expected = new Scanner(source.toString()).scanTokens();
+        ByteBuffer bytes = ByteBuffer.wrap(source.toString().getBytes(StandardCharsets.UTF_8));
+        List<Token> actual = new Scanner(bytes, StandardCharsets.UTF_8).scanTokens();
+
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).toString(), actual.get(i).toString());
+            assertEquals(expected.get(i).line, actual.get(i).line);
+            assertEquals(expected.get(i).column, actual.get(i).column);
+        }
+    }
+
+    @Test
+    void numbersMatchDoubleParsing() {
+        String[] literals = { "0", "7", "0.1", "2.5", "9007199254740993", "123456789012345678901",
+                "3.14159265358979323846", "0.0000000000000000000000001", "1.7976931348623157" };
+
+        for (String literal : literals) {
+            Token token = new Scanner(literal).token(0);
+            assertEquals(Double.parseDouble(literal), token.literal, literal);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package fr.jellycat.script;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.StringWriter;
+import java.util.function.BinaryOperator;
+
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.Invocable;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+
+import org.junit.jupiter.api.Test;
+
+class JeeveeScriptEngineTest {
+    private final ScriptEngine engine = new ScriptEngineManager().getEngineByName("jeevee");
+
+    @Test
+    void isFoundThroughTheServiceLoader() {
+        assertTrue(engine instanceof JeeveeScriptEngine);
+        assertTrue(new ScriptEngineManager().getEngineByExtension("eve") instanceof JeeveeScriptEngine);
+        assertNull(engine.getFactory().getParameter("THREADING"));
+    }
+
+    @Test
+    void evaluatesACompiledScriptAgainstDifferentBindings() throws ScriptException {
+        CompiledScript script = ((Compilable) engine).compile("let total = 0;\n"
+                + "for let i = 1; i <= n; i++ do\n"
+                + "  total = total + i;\n"
+                + "end\n"
+                + "greeting = greeting + \"!\";\n");
+
+        for (int n = 1; n <= 3; n++) {
+            Bindings bindings = engine.createBindings();
+            bindings.put("n", n);
+            bindings.put("greeting", "hello");
+            bindings.put("unused", new Object());
+
+            assertNull(script.eval(bindings));
+            assertEquals((long) n * (n + 1) / 2, bindings.get("total"));
+            assertEquals("hello!", bindings.get("greeting"));
+        }
+    }
+
+    @Test
+    void keepsGlobalsInTheEngineBindings() throws ScriptException {
+        StringWriter output = new StringWriter();
+        engine.getContext().setWriter(output);
+
+        engine.eval("let count = 1;");
+        engine.eval("count = count + 1; print count;");
+
+        assertEquals(2L, engine.get("count"));
+        assertEquals("2" + System.lineSeparator(), output.toString());
+    }
+
+    @Test
+    void callsFunctionsDefinedByEarlierEvaluations() throws ScriptException {
+        StringWriter output = new StringWriter();
+        engine.getContext().setWriter(output);
+
+        engine.eval("let base = 10;\n"
+                + "def sum(n)\n"
+                + "  if n < 1 then return base; end\n"
+                + "  return n + sum(n - 1);\n"
+                + "end\n");
+        engine.eval("let other = 0;\nprint sum(3);\nlet twice = lambda x: sum(x) * 2;\n");
+        engine.eval("print twice(4);");
+
+        assertEquals("16" + System.lineSeparator() + "40" + System.lineSeparator(), output.toString());
+    }
+
+    @Test
+    void invokesFunctionsTheScriptsDefined() throws ScriptException, NoSuchMethodException {
+        Invocable invocable = (Invocable) engine;
+        engine.eval("let calls = 0;\n"
+                + "def apply(a, b)\n"
+                + "  calls = calls + 1;\n"
+                + "  return a + b;\n"
+                + "end\n"
+                + "let answer = lambda: 42;\n");
+
+        assertEquals(5L, invocable.invokeFunction("apply", 2, 3));
+        assertEquals("ab", invocable.invokeFunction("apply", "a", "b"));
+        assertEquals(42L, invocable.invokeFunction("answer"));
+        assertThrows(NoSuchMethodException.class, () -> invocable.invokeFunction("calls"));
+        ScriptException arity = assertThrows(ScriptException.class, () -> invocable.invokeFunction("apply", 1));
+        assertTrue(arity.getMessage().startsWith("Expected 2 arguments but got 1."), arity.getMessage());
+
+        @SuppressWarnings("unchecked")
+        BinaryOperator<Object> apply = invocable.getInterface(BinaryOperator.class);
+        assertEquals(1.5, apply.apply(1, 0.5));
+        assertNull(invocable.getInterface(Runnable.class));
+    }
+
+    @Test
+    void runsFunctionsAgainstTheCurrentBindings() throws ScriptException, NoSuchMethodException {
+        StringWriter output = new StringWriter();
+        engine.getContext().setWriter(output);
+        engine.eval("let count = 0;\n"
+                + "def inc()\n"
+                + "  count = count + 1;\n"
+                + "  return count;\n"
+                + "end\n");
+
+        engine.eval("count = 100; print inc();");
+        assertEquals("101" + System.lineSeparator(), output.toString());
+        assertEquals(101L, engine.get("count"));
+
+        engine.put("count", 200);
+        assertEquals(201L, ((Invocable) engine).invokeFunction("inc"));
+        assertEquals(201L, engine.get("count"));
+    }
+
+    @Test
+    void reportsErrorsWithTheirPosition() {
+        engine.put(ScriptEngine.FILENAME, "broken.eve");
+
+        ScriptException syntax = assertThrows(ScriptException.class, () -> engine.eval("let = 1;"));
+        assertEquals("broken.eve", syntax.getFileName());
+        assertEquals(1, syntax.getLineNumber());
+
+        ScriptException runtime = assertThrows(ScriptException.class, () -> engine.eval("let x = 1;\nprint 1 / 0;"));
+        assertEquals(2, runtime.getLineNumber());
+        assertEquals(1L, engine.get("x"));
+        assertFalse(engine.getBindings(javax.script.ScriptContext.ENGINE_SCOPE).containsKey("y"));
+    }
+}
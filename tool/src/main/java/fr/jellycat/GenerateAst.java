@@ -15,23 +15,32 @@ public class GenerateAst {
         String outputDir = args[0];
 
         defineAst(outputDir, "Expr", Arrays.asList(
-                "Assign         : Token name, Expr value",
+                "Assign         : Token name, Expr value | int depth = -1, int slot = -1",
                 "Conditional    : Expr test, Expr consequent, Expr alternate",
                 "Logical       : Expr left, Token operator, Expr right",
-                "Binary         : Expr left, Token operator, Expr right",
+                "Binary         : Expr left, Token operator, Expr right | BinaryNode node = BinaryNode.UNINITIALIZED",
+                "Call           : Expr callee, Token paren, List<Expr> arguments | Expr.Lambda checked",
                 "Grouping       : Expr expression",
+                "Invariant      : Expr expression | int slot = -1",
+                "Lambda         : Token name, List<Token> params, List<Stmt> body"
+                        + " | int locals, int[] captures, int[] cells",
                 "Literal        : Object value",
                 "Unary          : Token operator, Expr right",
                 "PostFix        : Expr left, Token operator",
-                "Variable       : Token name"));
+                "Variable       : Token name | int depth = -1, int slot = -1"));
 
         defineAst(outputDir, "Stmt", Arrays.asList(
-                "Block          : List<Stmt> statements",
+                "Block          : List<Stmt> statements | int locals",
                 "Expression     : Expr expression",
-                "If             : Expr condition, List<Stmt> consequent, List<Stmt> alternate",
+                "Function       : Token name, Expr.Lambda function | int depth = -1, int slot = -1",
+                "For            : Stmt.Var counter, Token operator, Expr limit, double step, Stmt body,"
+                        + " List<Expr.Invariant> invariants | int locals, int backEdges, CompiledLoop compiled",
+                "If             : Expr condition, List<Stmt> consequent, List<Stmt> alternate"
+                        + " | int consequentLocals, int alternateLocals",
                 "Print          : Expr expression",
-                "Var            : Token name, Expr initializer",
-                "While          : Expr condition, Stmt body"));
+                "Return         : Token keyword, Expr value | boolean tail",
+                "Var            : Token name, Expr initializer | int depth = -1, int slot = -1",
+                "While          : Token keyword, Expr condition, Stmt body | int locals, int backEdges, CompiledLoop compiled"));
     }
 
     private static void defineAst(String outputDir, String baseName, List<String> types) throws IOException {
@@ -51,7 +60,15 @@ public class GenerateAst {
         for (String type : types) {
             String className = type.split(":")[0].trim();
             String fields = type.split(":")[1].trim();
-            defineType(writer, baseName, className, fields);
+            String annotations = null;
+
+            // Fields after '|' are filled in by later passes, like the resolver.
+            if (fields.contains("|")) {
+                annotations = fields.split("\\|")[1].trim();
+                fields = fields.split("\\|")[0].trim();
+            }
+
+            defineType(writer, baseName, className, fields, annotations);
         }
 
         writer.println();
@@ -77,7 +94,8 @@ public class GenerateAst {
         writer.println();
     }
 
-    private static void defineType(PrintWriter writer, String baseName, String className, String fieldList) {
+    private static void defineType(PrintWriter writer, String baseName, String className, String fieldList,
+            String annotationList) {
         writer.println("    static class " + className + " extends " + baseName + " {");
 
         // Constructor.
@@ -104,6 +122,13 @@ public class GenerateAst {
             writer.println("        final " + field + ";");
         }
 
+        if (annotationList != null) {
+            writer.println();
+            for (String annotation : annotationList.split(", ")) {
+                writer.println("        " + annotation + ";");
+            }
+        }
+
         writer.println("    }");
         writer.println();
     }